@@ -31,8 +31,10 @@ public class AppProgressPreference extends TintablePreference {
     }
 
     public void setProgress(int amount) {
-        mProgress = amount;
-        notifyChanged();
+        if (mProgress != amount) {
+            mProgress = amount;
+            notifyChanged();
+        }
     }
 
     @Override
@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -63,7 +61,6 @@ import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
@@ -97,7 +94,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -135,9 +131,11 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidUsageAggregator;
 import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
@@ -149,7 +147,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -204,6 +201,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private SubscriptionManager mSubscriptionManager;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsCache mStatsCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -333,6 +331,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        mStatsCache = new NetworkStatsCache(mStatsSession);
+        mStatsCache.register(context);
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
         mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
@@ -526,6 +526,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    // don't wait for the broadcast to drop stats cached before the poll
+                    mStatsCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -672,6 +674,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        mStatsCache.unregister(getActivity());
         TrafficStats.closeQuietly(mStatsSession);
 
         super.onDestroy();
@@ -1485,7 +1488,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, mStatsCache, args);
         }
 
         @Override
@@ -1516,7 +1519,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsCache, args);
         }
 
         @Override
@@ -1525,6 +1528,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
             updateEmptyVisible();
+            prefetchAdjacentCycles();
         }
 
         @Override
@@ -1540,6 +1544,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
+    /**
+     * Prefetch the summaries of the cycles around the selected one, so that moving to them
+     * does not wait for the stats service.
+     */
+    private void prefetchAdjacentCycles() {
+        final int position = mCycleSpinner.getSelectedItemPosition();
+        if (position < 0 || mTemplate == null) return;
+
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i < 0 || i >= mCycleAdapter.getCount()) continue;
+            final CycleItem cycle = mCycleAdapter.getItem(i);
+            if (cycle instanceof CycleChangeItem) continue;
+            mStatsCache.prefetchSummaryForAllUid(mTemplate, cycle.start, cycle.end);
+        }
+    }
+
     private static String getActiveSubscriberId(Context context) {
         final TelephonyManager tele = TelephonyManager.from(context);
         final String actualSubscriberId = tele.getSubscriberId();
@@ -1761,8 +1781,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         private final int mInsetSide;
         private final UserManager mUm;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
-        private long mLargest;
+        private final UidUsageAggregator mAggregator = new UidUsageAggregator();
 
         public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
@@ -1774,125 +1793,24 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-            mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // If it is a removed user add it to the removed users' key
-                        final UserInfo info = mUm.getUserInfo(userId);
-                        if (info == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            // Add to other user item.
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
-                        }
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
-            }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
-            }
-
-            Collections.sort(mItems);
+            mAggregator.aggregate(stats, restrictedUids, mUm, mUm.getUserProfiles(),
+                    ActivityManager.getCurrentUser());
             notifyDataSetChanged();
         }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
-            }
-        }
-
         @Override
         public int getCount() {
-            return mItems.size();
+            return mAggregator.getCount();
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return mAggregator.getItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return mAggregator.getKey(position);
         }
 
         /**
@@ -1908,8 +1826,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
          */
         @Override
         public int getItemViewType(int position) {
-            final AppItem item = mItems.get(position);
-            if (item.category == AppItem.CATEGORY_APP_TITLE) {
+            if (mAggregator.getCategory(position) == AppItem.CATEGORY_APP_TITLE) {
                 return 1;
             } else {
                 return 0;
@@ -1923,7 +1840,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public boolean isEnabled(int position) {
-            if (position > mItems.size()) {
+            if (position > mAggregator.getCount()) {
                 throw new ArrayIndexOutOfBoundsException();
             }
             return getItemViewType(position) == 0;
@@ -1931,7 +1848,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            final AppItem item = mItems.get(position);
+            final AppItem item = mAggregator.getItem(position);
             LayoutInflater inflater = LayoutInflater.from(parent.getContext());
             if (getItemViewType(position) == 1) {
                 if (convertView == null) {
@@ -1969,7 +1886,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     progress.setVisibility(View.VISIBLE);
                 }
 
-                final int percentTotal = mLargest != 0 ? (int) (item.total * 100 / mLargest) : 0;
+                final long largest = mAggregator.getLargest();
+                final int percentTotal = largest != 0 ? (int) (item.total * 100 / largest) : 0;
                 progress.setProgress(percentTotal);
             }
 
@@ -2484,7 +2402,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 bindView(cachedDetail, target);
             } else {
                 target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
+                        provider.getExecutor()));
             }
         }
 
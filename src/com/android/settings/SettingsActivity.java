@@ -81,6 +81,7 @@ import com.android.settings.applications.UsageAccessDetails;
 import com.android.settings.applications.WriteSettingsDetails;
 import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.dashboard.DashboardCategory;
+import com.android.settings.dashboard.DashboardSnapshot;
 import com.android.settings.dashboard.DashboardSummary;
 import com.android.settings.dashboard.DashboardTile;
 import com.android.settings.dashboard.NoHomeDialogFragment;
@@ -132,9 +133,15 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SettingsActivity extends Activity
         implements PreferenceManager.OnPreferenceTreeClickListener,
@@ -367,7 +374,8 @@ public class SettingsActivity extends Activity
     private SharedPreferences mDevelopmentPreferences;
     private SharedPreferences.OnSharedPreferenceChangeListener mDevelopmentPreferencesListener;
 
-    private boolean mBatteryPresent = true;
+    // Read by the categories build thread
+    private volatile boolean mBatteryPresent = true;
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -405,27 +413,47 @@ public class SettingsActivity extends Activity
     private SearchResultsSummary mSearchResultsFragment;
     private String mSearchQuery;
 
+    /**
+     * Listener notified when the dashboard categories have been rebuilt and changed.
+     */
+    public interface DashboardCategoriesListener {
+        void onDashboardCategoriesChanged();
+    }
+
     // Categories
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
+    // Parcel form of mCategories, used to detect that a rebuild did not change anything
+    private byte[] mCategoriesPayload;
+    // Only the categories built for the latest generation are used
+    private volatile int mCategoriesGeneration;
+    private DashboardCategoriesListener mCategoriesListener;
+
+    // Builds the categories one at a time, without keeping a thread around when idle
+    private static final Executor CATEGORIES_EXECUTOR = new ThreadPoolExecutor(0, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SettingsActivity:Categories");
+                }
+            });
 
-    private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
-    private static final int MSG_BUILD_CATEGORIES = 1;
+    private static final int MSG_CATEGORIES_BUILT = 1;
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_BUILD_CATEGORIES: {
-                    final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
-                    if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
-                    }
+                case MSG_CATEGORIES_BUILT: {
+                    final Pair<ArrayList<DashboardCategory>, byte[]> result =
+                            (Pair<ArrayList<DashboardCategory>, byte[]>) msg.obj;
+                    onDashboardCategoriesBuilt(msg.arg1, result.first, result.second);
                 } break;
             }
         }
     };
 
     private boolean mNeedToRevertToInitialFragment = false;
-    private int mHomeActivitiesCount = 1;
+    // Also updated by the categories build thread
+    private volatile int mHomeActivitiesCount = 1;
 
     private Intent mResultIntentData;
 
@@ -433,13 +461,37 @@ public class SettingsActivity extends Activity
         return mSwitchBar;
     }
 
+    /**
+     * Returns the dashboard categories.
+     *
+     * On a cold start they come from the on-disk snapshot when it is valid, and are only built
+     * synchronously when it is not. The categories are then rebuilt in the background when
+     * forceRefresh is set or when they came from the snapshot, and the listener set with
+     * {@link #setDashboardCategoriesListener} is notified if they changed.
+     */
     public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
-        if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+        if (mCategories.size() == 0) {
+            mCategoriesPayload = DashboardSnapshot.read(this, mCategories);
+            if (mCategoriesPayload == null) {
+                // No usable snapshot, e.g. on first launch or after a system update
+                buildDashboardCategories(mCategories);
+                mCategoriesPayload = DashboardSnapshot.marshall(mCategories);
+                writeDashboardSnapshot(mCategoriesPayload);
+                return mCategories;
+            }
+            // The snapshot may be stale, reconcile it with the current state
+            forceRefresh = true;
+        }
+        if (forceRefresh) {
+            invalidateCategories(true);
         }
         return mCategories;
     }
 
+    public void setDashboardCategoriesListener(DashboardCategoriesListener listener) {
+        mCategoriesListener = listener;
+    }
+
     @Override
     public boolean onPreferenceStartFragment(PreferenceFragment caller, Preference pref) {
         // Override the fragment title for Wallpaper settings
@@ -465,13 +517,58 @@ public class SettingsActivity extends Activity
     }
 
     private void invalidateCategories(boolean forceRefresh) {
-        if (!mHandler.hasMessages(MSG_BUILD_CATEGORIES)) {
-            Message msg = new Message();
-            msg.what = MSG_BUILD_CATEGORIES;
-            msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+        if (!forceRefresh && mCategories.size() > 0) {
+            return;
+        }
+        final int generation = ++mCategoriesGeneration;
+        CATEGORIES_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mCategoriesGeneration) {
+                    // A newer build has been requested in the meantime
+                    return;
+                }
+                final ArrayList<DashboardCategory> categories =
+                        new ArrayList<DashboardCategory>();
+                buildDashboardCategories(categories);
+                final byte[] payload = DashboardSnapshot.marshall(categories);
+                if (payload != null) {
+                    DashboardSnapshot.write(SettingsActivity.this, payload);
+                }
+                mHandler.obtainMessage(MSG_CATEGORIES_BUILT, generation, 0,
+                        Pair.create(categories, payload)).sendToTarget();
+            }
+        });
+    }
+
+    private void onDashboardCategoriesBuilt(int generation,
+            ArrayList<DashboardCategory> categories, byte[] payload) {
+        if (generation != mCategoriesGeneration || isDestroyed()) {
+            return;
+        }
+        if (payload != null && Arrays.equals(payload, mCategoriesPayload)) {
+            return;
+        }
+        mCategories.clear();
+        mCategories.addAll(categories);
+        mCategoriesPayload = payload;
+        if (mCategoriesListener != null) {
+            mCategoriesListener.onDashboardCategoriesChanged();
         }
     }
 
+    private void writeDashboardSnapshot(final byte[] payload) {
+        if (payload == null) {
+            return;
+        }
+        CATEGORIES_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                DashboardSnapshot.write(SettingsActivity.this, payload);
+            }
+        });
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -854,6 +951,10 @@ public class SettingsActivity extends Activity
         mDevelopmentPreferences.unregisterOnSharedPreferenceChangeListener(
                 mDevelopmentPreferencesListener);
         mDevelopmentPreferencesListener = null;
+
+        // Drop any categories build still pending
+        mCategoriesGeneration++;
+        mHandler.removeMessages(MSG_CATEGORIES_BUILT);
     }
 
     protected boolean isValidFragment(String fragmentName) {
@@ -1044,7 +1145,8 @@ public class SettingsActivity extends Activity
     }
 
     /**
-     * Called when the activity needs its list of categories/tiles built.
+     * Called when the activity needs its list of categories/tiles built. This is called from
+     * the categories build thread, except on a cold start without a valid snapshot.
      *
      * @param categories The list in which to place the tiles categories.
      */
@@ -1422,7 +1524,14 @@ public class SettingsActivity extends Activity
                 // now tell them about why they aren't seeing 'Home' in the list.
                 if (sShowNoHomeNotice) {
                     sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isDestroyed()) {
+                                NoHomeDialogFragment.show(SettingsActivity.this);
+                            }
+                        }
+                    });
                 }
                 return false;
             } else {
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of the subjects that {@link TrustedCredentialsSettings} shows for the CA
+ * certificates, so that opening the screen only parses the certificates it did not see before.
+ *
+ * Entries are keyed by alias and by the SHA-256 digest of the encoded certificate, so that a
+ * certificate replaced under the same alias is parsed again. Only the entries of the aliases
+ * found by the last load are written back.
+ */
+class TrustedCertificateCache {
+
+    private static final String TAG = "TrustedCertificateCache";
+    private static final boolean DEBUG = false;
+
+    private static final int VERSION = 1;
+
+    private static final String FILE_PREFIX = "trusted_certificates_";
+
+    private final File mFile;
+
+    // Subjects read from disk, and the ones found by the current load, by key
+    private final ArrayMap<String, String[]> mReadEntries = new ArrayMap<>();
+    private final ArrayMap<String, String[]> mLoadedEntries = new ArrayMap<>();
+
+    private MessageDigest mDigest;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Reads the cache of the given tab. This does disk I/O and should not be called from the UI
+     * thread.
+     */
+    static TrustedCertificateCache read(Context context, String tag) {
+        final TrustedCertificateCache cache = new TrustedCertificateCache(
+                new File(context.getCacheDir(), FILE_PREFIX + tag));
+        cache.readEntries();
+        return cache;
+    }
+
+    private TrustedCertificateCache(File file) {
+        mFile = file;
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Everything is parsed again instead
+            Log.w(TAG, "Cannot digest certificates", e);
+        }
+    }
+
+    /**
+     * Returns the key of the certificate of the given alias.
+     */
+    String getKey(String alias, byte[] encodedCertificate) {
+        if (mDigest == null) {
+            return null;
+        }
+        return alias + "/" + Base64.encodeToString(mDigest.digest(encodedCertificate),
+                Base64.NO_WRAP);
+    }
+
+    /**
+     * Returns the primary and secondary subjects cached under the key, or null.
+     */
+    String[] get(String key) {
+        final String[] subjects = key != null ? mReadEntries.get(key) : null;
+        if (subjects != null) {
+            mHitCount++;
+            mLoadedEntries.put(key, subjects);
+        } else {
+            mMissCount++;
+        }
+        return subjects;
+    }
+
+    void put(String key, String[] subjects) {
+        if (key != null) {
+            mLoadedEntries.put(key, subjects);
+        }
+    }
+
+    /**
+     * Writes the entries used or put since the cache was read, if they changed. This does disk
+     * I/O and should not be called from the UI thread.
+     */
+    void write() {
+        if (DEBUG) Log.d(TAG, mFile.getName() + " hits: " + mHitCount + ", misses: " + mMissCount);
+        // Hits share the arrays read, so this only matches when nothing was added or dropped
+        if (mLoadedEntries.equals(mReadEntries)) {
+            return;
+        }
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        FileOutputStream fos = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeInt(mLoadedEntries.size());
+            for (int i = 0, n = mLoadedEntries.size(); i < n; i++) {
+                final String[] subjects = mLoadedEntries.valueAt(i);
+                out.writeUTF(mLoadedEntries.keyAt(i));
+                out.writeUTF(subjects[0]);
+                out.writeUTF(subjects[1]);
+            }
+            out.flush();
+
+            fos = atomicFile.startWrite();
+            fos.write(bytes.toByteArray());
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + mFile, e);
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    private void readEntries() {
+        if (!mFile.exists()) {
+            return;
+        }
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new ByteArrayInputStream(atomicFile.readFully()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            mReadEntries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                mReadEntries.put(key, new String[] { in.readUTF(), in.readUTF() });
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read " + mFile, e);
+            mReadEntries.clear();
+            atomicFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -54,7 +54,6 @@ import android.widget.TextView;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.util.ParcelableString;
 
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -409,10 +408,20 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
             mTab = tab;
         }
 
-        private class AliasLoader extends AsyncTask<Void, Integer, SparseArray<List<CertHolder>>> {
+        /**
+         * Loads the certificates of the tab for all profiles. The subjects of the certificates
+         * seen before are read from a {@link TrustedCertificateCache} instead of being parsed,
+         * and the certificates are published to the list in batches as they are loaded.
+         */
+        private class AliasLoader extends AsyncTask<Void, CertHolderBatch,
+                SparseArray<List<CertHolder>>> {
+            // Number of certificates loaded between two updates of the list
+            private static final int BATCH_SIZE = 16;
+
             private ProgressBar mProgressBar;
             private View mList;
             private Context mContext;
+            private boolean mPublished;
 
             public AliasLoader() {
                 mContext = getActivity();
@@ -430,6 +439,8 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
                 SparseArray<List<CertHolder>> certHoldersByProfile =
                         new SparseArray<List<CertHolder>>();
                 try {
+                    final TrustedCertificateCache cache =
+                            TrustedCertificateCache.read(mContext, mTab.mTag);
                     List<UserHandle> profiles = mUserManager.getUserProfiles();
                     final int n = profiles.size();
                     // First we get all aliases for all profiles in order to show progress
@@ -462,20 +473,35 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
                         }
                         IKeyChainService service = mKeyChainConnectionByProfileId.get(profileId)
                                 .getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
                         final int aliasMax = aliases.size();
+                        List<CertHolder> certHolders = new ArrayList<CertHolder>(aliasMax);
+                        List<CertHolder> batch = new ArrayList<CertHolder>(BATCH_SIZE);
                         for (int j = 0; j < aliasMax; ++j) {
                             String alias = aliases.get(j).string;
                             byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
                                     true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                            final String key = cache.getKey(alias, encodedCertificate);
+                            String[] subjects = cache.get(key);
+                            if (subjects == null) {
+                                subjects = getSubjects(
+                                        KeyChain.toCertificate(encodedCertificate));
+                                cache.put(key, subjects);
+                            }
+                            CertHolder certHolder = new CertHolder(service, mAdapter, mTab,
+                                    alias, encodedCertificate, subjects, profileId);
+                            certHolders.add(certHolder);
+                            batch.add(certHolder);
+                            ++progress;
+                            if (batch.size() == BATCH_SIZE || j == aliasMax - 1) {
+                                publishProgress(
+                                        new CertHolderBatch(progress, max, profileId, batch));
+                                batch = new ArrayList<CertHolder>(BATCH_SIZE);
+                            }
                         }
                         Collections.sort(certHolders);
                         certHoldersByProfile.put(profileId, certHolders);
                     }
+                    cache.write();
                     return certHoldersByProfile;
                 } catch (RemoteException e) {
                     Log.e(TAG, "Remote exception while loading aliases.", e);
@@ -485,13 +511,27 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
                     return new SparseArray<List<CertHolder>>();
                 }
             }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+            @Override protected void onProgressUpdate(CertHolderBatch... batches) {
+                for (CertHolderBatch batch : batches) {
+                    if (!mPublished) {
+                        // Replaces the certificates of a previous load with the first batch
+                        mPublished = true;
+                        mCertHoldersByUserId.clear();
+                        mList.setVisibility(View.VISIBLE);
+                    }
+                    List<CertHolder> certHolders = mCertHoldersByUserId.get(batch.mProfileId);
+                    if (certHolders == null) {
+                        certHolders = new ArrayList<CertHolder>();
+                        mCertHoldersByUserId.put(batch.mProfileId, certHolders);
+                    }
+                    certHolders.addAll(batch.mCertHolders);
+                    Collections.sort(certHolders);
+                    if (batch.mMax != mProgressBar.getMax()) {
+                        mProgressBar.setMax(batch.mMax);
+                    }
+                    mProgressBar.setProgress(batch.mProgress);
                 }
-                mProgressBar.setProgress(progress);
+                mAdapter.notifyDataSetChanged();
             }
             @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
                 mCertHoldersByUserId.clear();
@@ -517,15 +557,33 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
         }
     }
 
+    /**
+     * Certificates of a profile published by an {@link AdapterData.AliasLoader}, with the
+     * progress of the load.
+     */
+    private static class CertHolderBatch {
+        private final int mProgress;
+        private final int mMax;
+        private final int mProfileId;
+        private final List<CertHolder> mCertHolders;
+
+        private CertHolderBatch(int progress, int max, int profileId,
+                List<CertHolder> certHolders) {
+            mProgress = progress;
+            mMax = max;
+            mProfileId = profileId;
+            mCertHolders = certHolders;
+        }
+    }
+
     private static class CertHolder implements Comparable<CertHolder> {
         public int mProfileId;
         private final IKeyChainService mService;
         private final TrustedCertificateAdapterCommons mAdapter;
         private final Tab mTab;
         private final String mAlias;
-        private final X509Certificate mX509Cert;
+        private final byte[] mEncodedCert;
 
-        private final SslCertificate mSslCert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
         private boolean mDeleted;
@@ -534,40 +592,18 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
                            TrustedCertificateAdapterCommons adapter,
                            Tab tab,
                            String alias,
-                           X509Certificate x509Cert,
+                           byte[] encodedCert,
+                           String[] subjects,
                            int profileId) {
             mProfileId = profileId;
             mService = service;
             mAdapter = adapter;
             mTab = tab;
             mAlias = alias;
-            mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
-            // if we have a O, use O as primary subject, secondary prefer CN over OU
-            // if we don't have an O, use CN as primary, empty secondary
-            // if we don't have O or CN, use DName as primary, empty secondary
-            if (!o.isEmpty()) {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = cn;
-                } else {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = ou;
-                }
-            } else {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = cn;
-                    mSubjectSecondary = "";
-                } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
-                    mSubjectSecondary = "";
-                }
-            }
+            mEncodedCert = encodedCert;
+            mSubjectPrimary = subjects[0];
+            mSubjectSecondary = subjects[1];
+
             try {
                 mDeleted = mTab.deleted(mService, mAlias);
             } catch (RemoteException e) {
@@ -595,6 +631,33 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
         }
     }
 
+    /**
+     * Returns the primary and secondary subjects to show for the certificate.
+     */
+    private static String[] getSubjects(X509Certificate x509Cert) {
+        SslCertificate sslCert = new SslCertificate(x509Cert);
+
+        String cn = sslCert.getIssuedTo().getCName();
+        String o = sslCert.getIssuedTo().getOName();
+        String ou = sslCert.getIssuedTo().getUName();
+        // if we have a O, use O as primary subject, secondary prefer CN over OU
+        // if we don't have an O, use CN as primary, empty secondary
+        // if we don't have O or CN, use DName as primary, empty secondary
+        if (!o.isEmpty()) {
+            if (!cn.isEmpty()) {
+                return new String[] { o, cn };
+            } else {
+                return new String[] { o, ou };
+            }
+        } else {
+            if (!cn.isEmpty()) {
+                return new String[] { cn, "" };
+            } else {
+                return new String[] { sslCert.getIssuedTo().getDName(), "" };
+            }
+        }
+    }
+
     private View getViewForCertificate(CertHolder certHolder, Tab mTab, View convertView,
             ViewGroup parent) {
         ViewHolder holder;
@@ -758,14 +821,12 @@ public class TrustedCredentialsSettings extends InstrumentedFragment {
                         mCertHolder.mProfileId);
                 IKeyChainService service = keyChainConnection.getService();
                 if (mCertHolder.mDeleted) {
-                    byte[] bytes = mCertHolder.mX509Cert.getEncoded();
-                    service.installCaCertificate(bytes);
+                    service.installCaCertificate(mCertHolder.mEncodedCert);
                     return true;
                 } else {
                     return service.deleteCaCertificate(mCertHolder.mAlias);
                 }
-            } catch (CertificateEncodingException | SecurityException | IllegalStateException
-                    | RemoteException e) {
+            } catch (SecurityException | IllegalStateException | RemoteException e) {
                 Log.w(TAG, "Error while toggling alias " + mCertHolder.mAlias,
                         e);
                 return false;
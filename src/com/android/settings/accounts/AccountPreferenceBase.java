@@ -17,22 +17,22 @@
 
 package com.android.settings.accounts;
 
+import android.accounts.Account;
 import android.accounts.AuthenticatorDescription;
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.content.SyncStatusObserver;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.Resources.Theme;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceScreen;
 import android.text.format.DateFormat;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 import android.view.ContextThemeWrapper;
 
 import com.android.settings.SettingsPreferenceFragment;
@@ -42,18 +42,16 @@ import java.util.ArrayList;
 import java.util.Date;
 
 abstract class AccountPreferenceBase extends SettingsPreferenceFragment
-        implements AuthenticatorHelper.OnAccountsUpdateListener {
+        implements AuthenticatorHelper.OnAccountsUpdateListener, SyncStateSnapshot.Listener {
 
     protected static final String TAG = "AccountSettings";
 
     public static final String AUTHORITIES_FILTER_KEY = "authorities";
     public static final String ACCOUNT_TYPES_FILTER_KEY = "account_types";
 
-    private final Handler mHandler = new Handler();
-
     private UserManager mUm;
-    private Object mStatusChangeListenerHandle;
     protected AuthenticatorHelper mAuthenticatorHelper;
+    protected SyncStateSnapshot mSyncState;
     protected UserHandle mUserHandle;
 
     private java.text.DateFormat mDateFormat;
@@ -67,6 +65,7 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
         mUserHandle = Utils.getSecureTargetUser(activity.getActivityToken(), mUm, getArguments(),
                 activity.getIntent().getExtras());
         mAuthenticatorHelper = new AuthenticatorHelper(activity, mUserHandle, mUm, this);
+        mSyncState = new SyncStateSnapshot(mUserHandle.getIdentifier(), this);
     }
 
     /**
@@ -86,8 +85,13 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
 
     /**
      * Overload to handle sync state updates.
+     *
+     * @param state the sync state of the accounts passed to {@link SyncStateSnapshot#setAccounts}
+     * @param changed the (account, authority) keys of the rows that changed
      */
-    protected void onSyncStateUpdated() {
+    @Override
+    public void onSyncStateChanged(SyncStateSnapshot.State state,
+            ArraySet<Pair<Account, String>> changed) {
 
     }
 
@@ -104,30 +108,15 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
     @Override
     public void onResume() {
         super.onResume();
-        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
-                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
-                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
-                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
-                mSyncStatusObserver);
-        onSyncStateUpdated();
+        mSyncState.start();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mSyncState.stop();
     }
 
-    private SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
-        public void onStatusChanged(int which) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    onSyncStateUpdated();
-                }
-            });
-        }
-    };
-
     public ArrayList<String> getAuthoritiesForAccountType(String type) {
         return mAuthenticatorHelper.getAuthoritiesForAccountType(type);
     }
@@ -32,8 +32,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SyncAdapterType;
-import android.content.SyncInfo;
-import android.content.SyncStatusInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.UserInfo;
 import android.os.Bundle;
@@ -42,7 +40,9 @@ import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -60,7 +60,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.List;
 
 public class AccountSyncSettings extends AccountPreferenceBase {
 
@@ -78,6 +77,8 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     private Account mAccount;
     private ArrayList<SyncStateSwitchPreference> mSwitches =
                 new ArrayList<SyncStateSwitchPreference>();
+    // Authorities of mSwitches, to only rebuild them when they change
+    private ArraySet<String> mSwitchAuthorities;
     private ArrayList<SyncAdapterType> mInvisibleAdapters = Lists.newArrayList();
 
     @Override
@@ -279,8 +280,9 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         // Note that this also counts accounts that are not currently displayed
-        boolean syncActive = !ContentResolver.getCurrentSyncsAsUser(
-                mUserHandle.getIdentifier()).isEmpty();
+        final SyncStateSnapshot.State state = mSyncState.getState();
+        boolean syncActive = state != null ? state.isSyncActive()
+                : !ContentResolver.getCurrentSyncsAsUser(mUserHandle.getIdentifier()).isEmpty();
         menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
         menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
     }
@@ -381,34 +383,32 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         }
     }
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        for (SyncInfo syncInfo : currentSyncs) {
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     @Override
-    protected void onSyncStateUpdated() {
+    public void onSyncStateChanged(SyncStateSnapshot.State state,
+            ArraySet<Pair<Account, String>> changed) {
         if (!isResumed()) return;
-        setFeedsState();
+        // Refresh the sync status switches - some syncs may have become syncable.
+        if (updateAccountSwitches(state)) {
+            changed = null;
+        }
+        setFeedsState(state, changed);
         final Activity activity = getActivity();
         if (activity != null) {
             activity.invalidateOptionsMenu();
         }
     }
 
-    private void setFeedsState() {
+    /**
+     * Updates the switches from the given state.
+     *
+     * @param changed the keys of the rows to update, or null to update all the switches
+     */
+    private void setFeedsState(SyncStateSnapshot.State state,
+            ArraySet<Pair<Account, String>> changed) {
         // iterate over all the preferences, setting the state properly for each
         Date date = new Date();
-        final int userId = mUserHandle.getIdentifier();
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(userId);
         boolean syncIsFailing = false;
-
-        // Refresh the sync status switches - some syncs may have become active.
-        updateAccountSwitches();
+        final boolean oneTimeSyncMode = !state.getMasterSyncAutomatically();
 
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
@@ -419,28 +419,28 @@ public class AccountSyncSettings extends AccountPreferenceBase {
 
             String authority = syncPref.getAuthority();
             Account account = syncPref.getAccount();
+            final SyncStateSnapshot.Row row = state.getRow(account, authority);
+            if (row == null) {
+                continue;
+            }
 
-            SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority, userId);
-            boolean syncEnabled = ContentResolver.getSyncAutomaticallyAsUser(account, authority,
-                    userId);
-            boolean authorityIsPending = status == null ? false : status.pending;
-            boolean initialSync = status == null ? false : status.initialize;
-
-            boolean activelySyncing = isSyncing(currentSyncs, account, authority);
-            boolean lastSyncFailed = status != null
-                    && status.lastFailureTime != 0
-                    && status.getLastFailureMesgAsInt(0)
-                       != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
-            if (!syncEnabled) lastSyncFailed = false;
+            boolean syncEnabled = row.syncAutomatically;
+            boolean authorityIsPending = row.pending;
+            boolean initialSync = row.initialize;
+            boolean activelySyncing = row.active;
+            boolean lastSyncFailed = syncEnabled && row.lastSyncFailed;
             if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
                 syncIsFailing = true;
             }
+            if (changed != null && !changed.contains(Pair.create(account, authority))) {
+                continue;
+            }
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "Update sync status: " + account + " " + authority +
                         " active = " + activelySyncing + " pend =" +  authorityIsPending);
             }
 
-            final long successEndTime = (status == null) ? 0 : status.lastSuccessTime;
+            final long successEndTime = row.lastSuccessTime;
             if (!syncEnabled) {
                 syncPref.setSummary(R.string.sync_disabled);
             } else if (activelySyncing) {
@@ -452,7 +452,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             } else {
                 syncPref.setSummary("");
             }
-            int syncState = ContentResolver.getIsSyncableAsUser(account, authority, userId);
+            int syncState = row.syncable;
 
             syncPref.setActive(activelySyncing && (syncState >= 0) &&
                     !initialSync);
@@ -460,8 +460,6 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                     !initialSync);
 
             syncPref.setFailed(lastSyncFailed);
-            final boolean oneTimeSyncMode = !ContentResolver.getMasterSyncAutomaticallyAsUser(
-                userId);
             syncPref.setOneTimeSyncMode(oneTimeSyncMode);
             syncPref.setChecked(oneTimeSyncMode || syncEnabled);
         }
@@ -476,8 +474,13 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             finish();
             return;
         }
-        updateAccountSwitches();
-        onSyncStateUpdated();
+        // Shows the last state until it is loaded again
+        final SyncStateSnapshot.State state = mSyncState.getState();
+        if (state != null) {
+            updateAccountSwitches(state);
+            setFeedsState(state, null);
+        }
+        mSyncState.setAccounts(new Account[] { mAccount });
     }
 
     private boolean accountExists(Account account) {
@@ -494,11 +497,15 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         return false;
     }
 
-    private void updateAccountSwitches() {
+    /**
+     * Adds the switches of the sync adapters that became syncable, and removes the others.
+     *
+     * @return whether the switches changed
+     */
+    private boolean updateAccountSwitches(SyncStateSnapshot.State state) {
         mInvisibleAdapters.clear();
 
-        SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(
-                mUserHandle.getIdentifier());
+        SyncAdapterType[] syncAdapters = state.getSyncAdapterTypes();
         ArrayList<String> authorities = new ArrayList<String>();
         for (int i = 0, n = syncAdapters.length; i < n; i++) {
             final SyncAdapterType sa = syncAdapters[i];
@@ -517,31 +524,43 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             }
         }
 
-        for (int i = 0, n = mSwitches.size(); i < n; i++) {
-            getPreferenceScreen().removePreference(mSwitches.get(i));
-        }
-        mSwitches.clear();
-
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.d(TAG, "looking for sync adapters that match account " + mAccount);
         }
+        final ArraySet<String> syncableAuthorities = new ArraySet<String>();
         for (int j = 0, m = authorities.size(); j < m; j++) {
             final String authority = authorities.get(j);
             // We could check services here....
-            int syncState = ContentResolver.getIsSyncableAsUser(mAccount, authority,
-                    mUserHandle.getIdentifier());
+            final SyncStateSnapshot.Row row = state.getRow(mAccount, authority);
+            int syncState = row != null ? row.syncable : 0;
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "  found authority " + authority + " " + syncState);
             }
             if (syncState > 0) {
-                addSyncStateSwitch(mAccount, authority);
+                syncableAuthorities.add(authority);
             }
         }
 
+        // Keep the switches if they are still the same, as rebuilding them resets their state
+        if (syncableAuthorities.equals(mSwitchAuthorities)) {
+            return false;
+        }
+        mSwitchAuthorities = syncableAuthorities;
+
+        for (int i = 0, n = mSwitches.size(); i < n; i++) {
+            getPreferenceScreen().removePreference(mSwitches.get(i));
+        }
+        mSwitches.clear();
+
+        for (int j = 0, m = syncableAuthorities.size(); j < m; j++) {
+            addSyncStateSwitch(mAccount, syncableAuthorities.valueAt(j));
+        }
+
         Collections.sort(mSwitches);
         for (int i = 0, n = mSwitches.size(); i < n; i++) {
             getPreferenceScreen().addPreference(mSwitches.get(i));
         }
+        return true;
     }
 
     /**
@@ -551,6 +570,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     protected void onAuthDescriptionsUpdated() {
         super.onAuthDescriptionsUpdated();
         getPreferenceScreen().removeAll();
+        mSwitchAuthorities = null;
         if (mAccount != null) {
             mProviderIcon.setImageDrawable(getDrawableForType(mAccount.type));
             mProviderId.setText(getLabelForType(mAccount.type));
@@ -24,8 +24,6 @@ import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SyncAdapterType;
-import android.content.SyncInfo;
-import android.content.SyncStatusInfo;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -37,7 +35,9 @@ import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceScreen;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -57,7 +57,6 @@ import com.android.settings.location.LocationSettings;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 
 import static android.content.Intent.EXTRA_USER;
 
@@ -110,7 +109,6 @@ public class ManageAccountsSettings extends AccountPreferenceBase
         mAuthenticatorHelper.listenToAccountUpdates();
         updateAuthDescriptions();
         showAccountsIfNeeded();
-        showSyncState();
     }
 
     @Override
@@ -186,8 +184,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     @Override
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        boolean syncActive = !ContentResolver.getCurrentSyncsAsUser(
-                mUserHandle.getIdentifier()).isEmpty();
+        final SyncStateSnapshot.State state = mSyncState.getState();
+        boolean syncActive = state != null ? state.isSyncActive()
+                : !ContentResolver.getCurrentSyncsAsUser(mUserHandle.getIdentifier()).isEmpty();
         menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
         menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
     }
@@ -235,8 +234,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     }
 
     @Override
-    protected void onSyncStateUpdated() {
-        showSyncState();
+    public void onSyncStateChanged(SyncStateSnapshot.State state,
+            ArraySet<Pair<Account, String>> changed) {
+        showSyncState(state, changed);
         // Catch any delayed delivery of update messages
         final Activity activity = getActivity();
         if (activity != null) {
@@ -247,21 +247,28 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     /**
      * Shows the sync state of the accounts. Note: it must be called after the accounts have been
      * loaded, @see #showAccountsIfNeeded().
+     *
+     * @param changed the keys of the rows that changed, to only update their accounts, or null
+     *     to update all the accounts
      */
-    private void showSyncState() {
+    private void showSyncState(SyncStateSnapshot.State state,
+            ArraySet<Pair<Account, String>> changed) {
         // Catch any delayed delivery of update messages
         if (getActivity() == null || getActivity().isFinishing()) return;
 
-        final int userId = mUserHandle.getIdentifier();
-
-        // iterate over all the preferences, setting the state properly for each
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(userId);
+        ArraySet<Account> changedAccounts = null;
+        if (changed != null) {
+            changedAccounts = new ArraySet<Account>();
+            for (int i = 0, n = changed.size(); i < n; i++) {
+                changedAccounts.add(changed.valueAt(i).first);
+            }
+        }
 
         boolean anySyncFailed = false; // true if sync on any account failed
         Date date = new Date();
 
         // only track userfacing sync adapters when deciding if account is synced or not
-        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(userId);
+        final SyncAdapterType[] syncAdapters = state.getSyncAdapterTypes();
         HashSet<String> userFacing = new HashSet<String>();
         for (int k = 0, n = syncAdapters.length; k < n; k++) {
             final SyncAdapterType sa = syncAdapters[k];
@@ -269,6 +276,7 @@ public class ManageAccountsSettings extends AccountPreferenceBase
                 userFacing.add(sa.authority);
             }
         }
+        final boolean masterSyncAutomatically = state.getMasterSyncAutomatically();
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
             if (! (pref instanceof AccountPreference)) {
@@ -282,25 +290,27 @@ public class ManageAccountsSettings extends AccountPreferenceBase
             boolean syncIsFailing = false;
             final ArrayList<String> authorities = accountPref.getAuthorities();
             boolean syncingNow = false;
+            // Accounts just added are left as they are until their state is loaded
+            boolean loaded = authorities == null || authorities.isEmpty();
             if (authorities != null) {
                 for (String authority : authorities) {
-                    SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority,
-                            userId);
-                    boolean syncEnabled = isSyncEnabled(userId, account, authority);
-                    boolean authorityIsPending = ContentResolver.isSyncPending(account, authority);
-                    boolean activelySyncing = isSyncing(currentSyncs, account, authority);
-                    boolean lastSyncFailed = status != null
-                            && syncEnabled
-                            && status.lastFailureTime != 0
-                            && status.getLastFailureMesgAsInt(0)
-                               != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+                    final SyncStateSnapshot.Row row = state.getRow(account, authority);
+                    if (row == null) {
+                        continue;
+                    }
+                    loaded = true;
+                    boolean syncEnabled = row.syncAutomatically && masterSyncAutomatically
+                            && row.syncable > 0;
+                    boolean authorityIsPending = row.pending;
+                    boolean activelySyncing = row.active;
+                    boolean lastSyncFailed = syncEnabled && row.lastSyncFailed;
                     if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
                         syncIsFailing = true;
                         anySyncFailed = true;
                     }
                     syncingNow |= activelySyncing;
-                    if (status != null && lastSuccessTime < status.lastSuccessTime) {
-                        lastSuccessTime = status.lastSuccessTime;
+                    if (lastSuccessTime < row.lastSuccessTime) {
+                        lastSuccessTime = row.lastSuccessTime;
                     }
                     syncCount += syncEnabled && userFacing.contains(authority) ? 1 : 0;
                 }
@@ -309,6 +319,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
                     Log.v(TAG, "no syncadapters found for " + account);
                 }
             }
+            if (!loaded || (changedAccounts != null && !changedAccounts.contains(account))) {
+                continue;
+            }
             if (syncIsFailing) {
                 accountPref.setSyncStatus(AccountPreference.SYNC_ERROR, true);
             } else if (syncCount == 0) {
@@ -335,27 +348,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     }
 
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        final int count = currentSyncs.size();
-        for (int i = 0; i < count;  i++) {
-            SyncInfo syncInfo = currentSyncs.get(i);
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isSyncEnabled(int userId, Account account, String authority) {
-        return ContentResolver.getSyncAutomaticallyAsUser(account, authority, userId)
-                && ContentResolver.getMasterSyncAutomaticallyAsUser(userId)
-                && (ContentResolver.getIsSyncableAsUser(account, authority, userId) > 0);
-    }
-
     @Override
     public void onAccountsUpdate(UserHandle userHandle) {
         showAccountsIfNeeded();
-        onSyncStateUpdated();
     }
 
     private void showAccountsIfNeeded() {
@@ -365,6 +360,7 @@ public class ManageAccountsSettings extends AccountPreferenceBase
         getPreferenceScreen().removeAll();
         mFirstAccount = null;
         addPreferencesFromResource(R.xml.manage_accounts_settings);
+        final ArrayList<Account> shownAccounts = new ArrayList<Account>();
         for (int i = 0, n = accounts.length; i < n; i++) {
             final Account account = accounts[i];
             // If an account type is specified for this screen, skip other types
@@ -387,11 +383,18 @@ public class ManageAccountsSettings extends AccountPreferenceBase
                 final AccountPreference preference =
                         new AccountPreference(getActivity(), account, icon, auths, false);
                 getPreferenceScreen().addPreference(preference);
+                shownAccounts.add(account);
                 if (mFirstAccount == null) {
                     mFirstAccount = account;
                 }
             }
         }
+        // Shows the last sync state until it is loaded again for these accounts
+        final SyncStateSnapshot.State state = mSyncState.getState();
+        if (state != null) {
+            showSyncState(state, null);
+        }
+        mSyncState.setAccounts(shownAccounts.toArray(new Account[shownAccounts.size()]));
         if (mAccountType != null && mFirstAccount != null) {
             addAuthenticatorSettings();
         } else {
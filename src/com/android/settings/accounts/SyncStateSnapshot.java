@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SyncAdapterType;
+import android.content.SyncInfo;
+import android.content.SyncStatusInfo;
+import android.content.SyncStatusObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Pair;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Loads the sync state of a set of accounts on a background thread, into a table of
+ * {@link Row}s indexed by (account, authority), and reports the rows that changed to the main
+ * thread.
+ *
+ * Bursts of sync status callbacks are coalesced into a single load, which only asks the sync
+ * manager again for the kinds of state the callbacks reported as changed.
+ */
+class SyncStateSnapshot {
+
+    private static final String TAG = "SyncStateSnapshot";
+
+    // Delay used to coalesce the status callbacks, which come in bursts during a sync
+    private static final int COALESCE_DELAY_MS = 250;
+
+    private static final int MSG_LOAD = 1;
+
+    private static final int LOAD_ACTIVE = ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE;
+    private static final int LOAD_STATUS = ContentResolver.SYNC_OBSERVER_TYPE_STATUS;
+    private static final int LOAD_SETTINGS = ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS;
+    private static final int LOAD_ALL = LOAD_ACTIVE | LOAD_STATUS | LOAD_SETTINGS;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when a load found changes.
+         *
+         * @param state the loaded state
+         * @param changed the (account, authority) keys of the rows that were added, removed or
+         *     changed; all of them when the master sync setting or the sync adapters changed
+         */
+        void onSyncStateChanged(State state, ArraySet<Pair<Account, String>> changed);
+    }
+
+    private final int mUserId;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler();
+
+    private HandlerThread mThread;
+    private Handler mBackgroundHandler;
+    private Object mStatusChangeListenerHandle;
+
+    // Accounts to load and kinds of state waiting for a load, guarded by this
+    private Account[] mAccounts = new Account[0];
+    private int mPendingLoads;
+
+    // Last state loaded, only used from the background thread
+    private State mLoadedState;
+    // Last state reported to the listener, only used from the main thread
+    private State mState;
+
+    private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
+        @Override
+        public void onStatusChanged(int which) {
+            requestLoad(which, COALESCE_DELAY_MS);
+        }
+    };
+
+    SyncStateSnapshot(int userId, Listener listener) {
+        mUserId = userId;
+        mListener = listener;
+    }
+
+    /**
+     * Starts listening to sync status changes, and loads the whole state.
+     */
+    public void start() {
+        mLoadedState = null;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        final Handler handler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                final Account[] accounts;
+                final int loads;
+                synchronized (SyncStateSnapshot.this) {
+                    accounts = mAccounts;
+                    loads = mPendingLoads;
+                    mPendingLoads = 0;
+                }
+                if (loads != 0) {
+                    load(accounts, loads);
+                }
+                return true;
+            }
+        });
+        synchronized (this) {
+            mBackgroundHandler = handler;
+        }
+        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
+                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
+                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
+                mSyncStatusObserver);
+        requestLoad(LOAD_ALL, 0);
+    }
+
+    public void stop() {
+        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mThread.quit();
+        mThread = null;
+        mMainHandler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            mBackgroundHandler = null;
+            mPendingLoads = 0;
+        }
+    }
+
+    /**
+     * Sets the accounts whose sync state is loaded, and loads the whole state again, since the
+     * sync adapters may have changed with the accounts.
+     */
+    public void setAccounts(Account[] accounts) {
+        synchronized (this) {
+            mAccounts = accounts;
+        }
+        requestLoad(LOAD_ALL, 0);
+    }
+
+    /**
+     * Returns the last state reported to the listener, or null if none was loaded yet.
+     */
+    public State getState() {
+        return mState;
+    }
+
+    private void requestLoad(int loads, int delayMs) {
+        final Handler handler;
+        synchronized (this) {
+            handler = mBackgroundHandler;
+            if (handler == null) {
+                return;
+            }
+            mPendingLoads |= loads;
+        }
+        if (delayMs == 0) {
+            handler.removeMessages(MSG_LOAD);
+            handler.sendEmptyMessage(MSG_LOAD);
+        } else if (!handler.hasMessages(MSG_LOAD)) {
+            handler.sendEmptyMessageDelayed(MSG_LOAD, delayMs);
+        }
+    }
+
+    /**
+     * Loads the given kinds of state, keeping the others as last loaded, and reports the rows
+     * that changed. Called on the background thread.
+     */
+    private void load(Account[] accounts, int loads) {
+        final State previous = mLoadedState;
+        if (previous == null) {
+            loads = LOAD_ALL;
+        }
+
+        final State state = new State();
+        if ((loads & LOAD_SETTINGS) != 0) {
+            state.masterSyncAutomatically =
+                    ContentResolver.getMasterSyncAutomaticallyAsUser(mUserId);
+            state.syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(mUserId);
+        } else {
+            state.masterSyncAutomatically = previous.masterSyncAutomatically;
+            state.syncAdapters = previous.syncAdapters;
+        }
+        if ((loads & LOAD_ACTIVE) != 0) {
+            final List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(mUserId);
+            for (int i = 0, n = currentSyncs.size(); i < n; i++) {
+                final SyncInfo syncInfo = currentSyncs.get(i);
+                state.activeSyncs.add(Pair.create(syncInfo.account, syncInfo.authority));
+            }
+        } else {
+            state.activeSyncs.addAll(previous.activeSyncs);
+        }
+
+        for (Account account : accounts) {
+            for (SyncAdapterType sa : state.syncAdapters) {
+                if (!sa.accountType.equals(account.type)) continue;
+                final Pair<Account, String> key = Pair.create(account, sa.authority);
+                final Row old = previous != null ? previous.rows.get(key) : null;
+                final Row row = new Row(account, sa.authority);
+                if (old == null || (loads & LOAD_SETTINGS) != 0) {
+                    row.syncAutomatically = ContentResolver.getSyncAutomaticallyAsUser(account,
+                            sa.authority, mUserId);
+                    row.syncable = ContentResolver.getIsSyncableAsUser(account, sa.authority,
+                            mUserId);
+                } else {
+                    row.syncAutomatically = old.syncAutomatically;
+                    row.syncable = old.syncable;
+                }
+                if (old == null || (loads & LOAD_STATUS) != 0) {
+                    final SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account,
+                            sa.authority, mUserId);
+                    row.pending = status != null && status.pending;
+                    row.initialize = status != null && status.initialize;
+                    row.lastSuccessTime = status != null ? status.lastSuccessTime : 0;
+                    row.lastSyncFailed = status != null
+                            && status.lastFailureTime != 0
+                            && status.getLastFailureMesgAsInt(0)
+                               != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+                } else {
+                    row.pending = old.pending;
+                    row.initialize = old.initialize;
+                    row.lastSuccessTime = old.lastSuccessTime;
+                    row.lastSyncFailed = old.lastSyncFailed;
+                }
+                row.active = state.activeSyncs.contains(key);
+                state.rows.put(key, row);
+            }
+        }
+        mLoadedState = state;
+
+        final ArraySet<Pair<Account, String>> changed = new ArraySet<>();
+        if (previous == null
+                || previous.masterSyncAutomatically != state.masterSyncAutomatically
+                || !Arrays.equals(previous.syncAdapters, state.syncAdapters)) {
+            changed.addAll(state.rows.keySet());
+            if (previous != null) {
+                changed.addAll(previous.rows.keySet());
+            }
+        } else {
+            for (int i = 0, n = state.rows.size(); i < n; i++) {
+                if (!state.rows.valueAt(i).equals(previous.rows.get(state.rows.keyAt(i)))) {
+                    changed.add(state.rows.keyAt(i));
+                }
+            }
+            for (int i = 0, n = previous.rows.size(); i < n; i++) {
+                if (!state.rows.containsKey(previous.rows.keyAt(i))) {
+                    changed.add(previous.rows.keyAt(i));
+                }
+            }
+        }
+        if (previous != null && changed.isEmpty()
+                && previous.isSyncActive() == state.isSyncActive()) {
+            return;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mThread == null) {
+                    // Stopped meanwhile
+                    return;
+                }
+                mState = state;
+                mListener.onSyncStateChanged(state, changed);
+            }
+        });
+    }
+
+    /**
+     * Sync state of a user, for the loaded accounts. Not modified once reported.
+     */
+    public static class State {
+        boolean masterSyncAutomatically;
+        SyncAdapterType[] syncAdapters;
+        final ArraySet<Pair<Account, String>> activeSyncs = new ArraySet<>();
+        final ArrayMap<Pair<Account, String>, Row> rows = new ArrayMap<>();
+
+        public boolean getMasterSyncAutomatically() {
+            return masterSyncAutomatically;
+        }
+
+        /**
+         * Returns the sync adapters of the user, including the ones of other accounts.
+         */
+        public SyncAdapterType[] getSyncAdapterTypes() {
+            return syncAdapters;
+        }
+
+        /**
+         * Returns whether any account of the user is syncing, not only the loaded accounts.
+         */
+        public boolean isSyncActive() {
+            return !activeSyncs.isEmpty();
+        }
+
+        /**
+         * Returns the row of the account and authority, or null if the account was not loaded
+         * or has no sync adapter for the authority.
+         */
+        public Row getRow(Account account, String authority) {
+            return rows.get(Pair.create(account, authority));
+        }
+    }
+
+    /**
+     * Sync state of an authority for an account.
+     */
+    public static class Row {
+        public final Account account;
+        public final String authority;
+        public boolean syncAutomatically;
+        public int syncable;
+        public boolean active;
+        public boolean pending;
+        public boolean initialize;
+        public boolean lastSyncFailed;
+        public long lastSuccessTime;
+
+        Row(Account account, String authority) {
+            this.account = account;
+            this.authority = authority;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Row) {
+                final Row another = (Row) o;
+                return account.equals(another.account)
+                        && authority.equals(another.authority)
+                        && syncAutomatically == another.syncAutomatically
+                        && syncable == another.syncable
+                        && active == another.active
+                        && pending == another.pending
+                        && initialize == another.initialize
+                        && lastSyncFailed == another.lastSyncFailed
+                        && lastSuccessTime == another.lastSuccessTime;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(account, authority, syncAutomatically, syncable, active, pending,
+                    initialize, lastSyncFailed, lastSuccessTime);
+        }
+    }
+}
@@ -18,31 +18,75 @@ package com.android.settings.applications;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.Session;
 
 import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common base class for bridging information to ApplicationsState.
  */
 public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks {
 
+    private static final String TAG = "AppStateBaseBridge";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Apps loaded by each task of loadAllExtraInfoSharded()
+    private static final int SHARD_SIZE = 32;
+
+    // Loads the shards of all the bridges, without keeping threads around when idle
+    private static final ThreadPoolExecutor SHARD_EXECUTOR = new ThreadPoolExecutor(3, 3,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "AppStateBaseBridge:Shard");
+                }
+            });
+
+    static {
+        SHARD_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     protected final ApplicationsState mAppState;
     protected final Session mAppSession;
     protected final Callback mCallback;
     protected final BackgroundHandler mHandler;
     protected final MainHandler mMainHandler;
 
+    // App entries by uid and package, rebuilt by each load of all the extra info. Only used
+    // from the background handler.
+    private final SparseArray<ArrayMap<String, AppEntry>> mAppIndex = new SparseArray<>();
+
+    // Current load of all the extra info, see loadAllExtraInfoSharded(). Bumped by each load,
+    // and by pause() and release() so that the shards still loading stop.
+    private final AtomicInteger mLoadGeneration = new AtomicInteger();
+    private long mLoadStart;
+    private boolean mShardedLoadPending;
+
+    // Load metrics, only written from the background handler
+    private int mLoadCount;
+    private long mLastLoadTime;
+    private long mTotalLoadTime;
+
     public AppStateBaseBridge(ApplicationsState appState, Callback callback) {
         mAppState = appState;
         mAppSession = mAppState != null ? mAppState.newSession(this) : null;
         mCallback = callback;
         // Running on the same background thread as the ApplicationsState lets
         // us run in the background and make sure they aren't doing updates at
-        // the same time as us as well.
+        // the same time as us as well. Sharded loads are the exception: their
+        // shards run on their own threads, see loadAllExtraInfoSharded().
         mHandler = new BackgroundHandler(mAppState.getBackgroundLooper());
         mMainHandler = new MainHandler();
     }
@@ -54,10 +98,25 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
 
     public void pause() {
         mAppSession.pause();
+        mLoadGeneration.incrementAndGet();
     }
 
     public void release() {
         mAppSession.release();
+        mLoadGeneration.incrementAndGet();
+        mMainHandler.removeMessages(MainHandler.MSG_INFO_UPDATED);
+        if (DEBUG) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLoadCount > 0) {
+                        Log.d(TAG, getClass().getSimpleName() + " loaded all extra info "
+                                + mLoadCount + " times, last in " + mLastLoadTime
+                                + "ms, average " + (mTotalLoadTime / mLoadCount) + "ms");
+                    }
+                }
+            });
+        }
     }
 
     public void forceUpdate(String pkg, int uid) {
@@ -104,7 +163,116 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         // No op.
     }
 
+    /**
+     * Lets the callback show the extra info loaded so far, while loadAllExtraInfo() is still
+     * running. Updates that are already pending are not posted again.
+     */
+    protected void notifyExtraInfoUpdated() {
+        if (!mMainHandler.hasMessages(MainHandler.MSG_INFO_UPDATED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+        }
+    }
+
     protected abstract void loadAllExtraInfo();
+
+    /**
+     * Loads the extra info of a single app, for bridges that use loadAllExtraInfoSharded().
+     * This runs on the shard threads, in parallel with the other apps, so bridges using it
+     * must make updateExtraInfo() safe to call from there or override this.
+     */
+    protected void loadExtraInfo(AppEntry app) {
+        updateExtraInfo(app, app.info.packageName, app.info.uid);
+    }
+
+    /**
+     * Loads the extra info of all the apps with loadExtraInfo(), in shards loaded in parallel
+     * off the background handler, so that the list can be rebuilt with the apps loaded so far:
+     * each shard publishes its apps when it finishes. Meant to be called from
+     * loadAllExtraInfo(), which then returns before the apps are loaded. Each app only gets a
+     * single write of its extra info, so a rebuild sees either its previous or its new info.
+     */
+    protected void loadAllExtraInfoSharded() {
+        final ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final int N = apps.size();
+        final int shardCount = (N + SHARD_SIZE - 1) / SHARD_SIZE;
+        if (shardCount <= 1) {
+            for (int i = 0; i < N; i++) {
+                loadExtraInfo(apps.get(i));
+            }
+            return;
+        }
+
+        mShardedLoadPending = true;
+        final int generation = mLoadGeneration.get();
+        final long start = mLoadStart;
+        final AtomicInteger remainingShards = new AtomicInteger(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            final int first = shard * SHARD_SIZE;
+            final int end = Math.min(N, first + SHARD_SIZE);
+            SHARD_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < end; i++) {
+                            if (generation != mLoadGeneration.get()) {
+                                // Paused, released or loading again
+                                return;
+                            }
+                            loadExtraInfo(apps.get(i));
+                        }
+                        notifyExtraInfoUpdated();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Cannot load the extra info of apps " + first + " to " + end,
+                                e);
+                    } finally {
+                        if (remainingShards.decrementAndGet() == 0) {
+                            mHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (generation == mLoadGeneration.get()) {
+                                        finishLoadAll(start);
+                                    }
+                                }
+                            });
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void finishLoadAll(long start) {
+        mLastLoadTime = SystemClock.elapsedRealtime() - start;
+        mTotalLoadTime += mLastLoadTime;
+        mLoadCount++;
+        mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+    }
+
+    private void rebuildAppIndex() {
+        mAppIndex.clear();
+        final ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        for (int i = 0, N = apps.size(); i < N; i++) {
+            final AppEntry app = apps.get(i);
+            ArrayMap<String, AppEntry> packages = mAppIndex.get(app.info.uid);
+            if (packages == null) {
+                packages = new ArrayMap<>(1);
+                mAppIndex.put(app.info.uid, packages);
+            }
+            packages.put(app.info.packageName, app);
+        }
+    }
+
+    private AppEntry findApp(String pkg, int uid) {
+        ArrayMap<String, AppEntry> packages = mAppIndex.get(uid);
+        AppEntry app = packages != null ? packages.get(pkg) : null;
+        if (app == null) {
+            // May have been installed since the last load
+            rebuildAppIndex();
+            packages = mAppIndex.get(uid);
+            app = packages != null ? packages.get(pkg) : null;
+        }
+        return app;
+    }
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
     private class MainHandler extends Handler {
@@ -132,19 +300,22 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_LOAD_ALL:
+                    // Drops the shards still loading for a previous load
+                    mLoadGeneration.incrementAndGet();
+                    mLoadStart = SystemClock.elapsedRealtime();
+                    mShardedLoadPending = false;
+                    rebuildAppIndex();
                     loadAllExtraInfo();
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                    if (!mShardedLoadPending) {
+                        finishLoadAll(mLoadStart);
+                    }
                     break;
                 case MSG_FORCE_LOAD_PKG:
-                    ArrayList<AppEntry> apps = mAppSession.getAllApps();
-                    final int N = apps.size();
                     String pkg = (String) msg.obj;
                     int uid = msg.arg1;
-                    for (int i = 0; i < N; i++) {
-                        AppEntry app = apps.get(i);
-                        if (app.info.uid == uid && pkg.equals(app.info.packageName)) {
-                            updateExtraInfo(app, pkg, uid);
-                        }
+                    AppEntry app = findApp(pkg, uid);
+                    if (app != null) {
+                        updateExtraInfo(app, pkg, uid);
                     }
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
                     break;
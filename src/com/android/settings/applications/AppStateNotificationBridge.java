@@ -15,16 +15,12 @@
  */
 package com.android.settings.applications;
 
-import android.content.pm.PackageManager;
-
 import com.android.settings.notification.NotificationBackend;
 import com.android.settings.notification.NotificationBackend.AppRow;
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
-import java.util.ArrayList;
-
 /**
  * Connects the info provided by ApplicationsState and the NotificationBackend.
  * Also provides app filters that can use the notification data.
@@ -32,28 +28,23 @@ import java.util.ArrayList;
 public class AppStateNotificationBridge extends AppStateBaseBridge {
 
     private final NotificationBackend mNotifBackend;
-    private final PackageManager mPm;
 
-    public AppStateNotificationBridge(PackageManager pm, ApplicationsState appState,
-            Callback callback, NotificationBackend notifBackend) {
+    public AppStateNotificationBridge(ApplicationsState appState, Callback callback,
+            NotificationBackend notifBackend) {
         super(appState, callback);
-        mPm = pm;
         mNotifBackend = notifBackend;
     }
 
     @Override
     protected void loadAllExtraInfo() {
-        ArrayList<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mPm, app.info);
-        }
+        loadAllExtraInfoSharded();
     }
 
     @Override
     protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
-        app.extraInfo = mNotifBackend.loadAppRow(mPm, app.info);
+        // The list binds the labels and icons of ApplicationsState, so only the policy is
+        // loaded here. This also runs on the shard threads of loadAllExtraInfoSharded().
+        app.extraInfo = mNotifBackend.loadAppRowPolicy(app.info);
     }
 
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
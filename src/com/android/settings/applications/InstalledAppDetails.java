@@ -831,7 +831,7 @@ public class InstalledAppDetails extends AppInfoBase
 
     public static CharSequence getNotificationSummary(AppEntry appEntry, Context context,
             NotificationBackend backend) {
-        AppRow appRow = backend.loadAppRow(context.getPackageManager(), appEntry.info);
+        AppRow appRow = backend.loadAppRowPolicy(appEntry.info);
         return getNotificationSummary(appRow, context);
     }
 
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide, size-bounded cache of the labels and icons resolved for uids, shared by the
+ * app lists, together with a small pool of workers that resolve them.
+ *
+ * Each client stores its own value type under its own {@code type}, so that differently built
+ * labels for the same uid do not collide. The entries of a uid are dropped when one of its
+ * packages is added, replaced, changed or removed, and all entries are dropped when the locale
+ * changes, so callers never need to check package versions themselves.
+ *
+ * The workers take the most urgent work first: {@link #PRIORITY_VISIBLE} for rows on screen,
+ * then {@link #PRIORITY_OFFSCREEN}, each in submission order.
+ */
+public class LabelIconCache {
+
+    private static final String TAG = "LabelIconCache";
+
+    public static final int TYPE_BATTERY_ENTRY = 1;
+    public static final int TYPE_UID_DETAIL = 2;
+
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_OFFSCREEN = 1;
+
+    private static final int MAX_ENTRIES = 256;
+    private static final int WORKER_COUNT = 2;
+
+    private static LabelIconCache sInstance;
+
+    private final LruCache<Key, Object> mCache = new LruCache<Key, Object>(MAX_ENTRIES);
+
+    // Orders the work of the pool, see PrioritizedTask
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final ThreadPoolExecutor mWorkers = new ThreadPoolExecutor(WORKER_COUNT,
+            WORKER_COUNT, 1, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "LabelIconCache:Worker");
+                }
+            });
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                evictUid(uid);
+            }
+        }
+    };
+
+    private final BroadcastReceiver mLocaleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            evictAll();
+        }
+    };
+
+    public static synchronized LabelIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LabelIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LabelIconCache(Context context) {
+        mWorkers.allowCoreThreadTimeOut(true);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, packageFilter);
+        context.registerReceiver(mLocaleReceiver,
+                new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Returns the value of the given type cached for the uid, or null.
+     */
+    public Object get(int type, int uid) {
+        return mCache.get(new Key(type, uid));
+    }
+
+    public void put(int type, int uid, Object value) {
+        mCache.put(new Key(type, uid), value);
+    }
+
+    public void evictUid(int uid) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.uid == uid) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void evictType(int type) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.type == type) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public void logMetrics() {
+        Log.d(TAG, "Cache hits: " + mCache.hitCount() + ", misses: " + mCache.missCount()
+                + ", evictions: " + mCache.evictionCount() + ", size: " + mCache.size());
+    }
+
+    /**
+     * Runs the task on the workers, after the pending tasks of a more urgent priority.
+     */
+    public void execute(Runnable task, int priority) {
+        mWorkers.execute(new PrioritizedTask(task, priority, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * Returns an executor that runs its tasks on the workers with the given priority, for
+     * instance to run an AsyncTask.
+     */
+    public Executor getExecutor(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                LabelIconCache.this.execute(task, priority);
+            }
+        };
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable mTask;
+        private final int mPriority;
+        private final long mSequence;
+
+        PrioritizedTask(Runnable task, int priority, long sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            final int comparison = Integer.compare(mPriority, another.mPriority);
+            return comparison != 0 ? comparison : Long.compare(mSequence, another.mSequence);
+        }
+    }
+
+    private static class Key {
+        final int type;
+        final int uid;
+
+        Key(int type, int uid) {
+            this.type = type;
+            this.uid = uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                final Key another = (Key) o;
+                return type == another.type && uid == another.uid;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type + uid;
+        }
+    }
+}
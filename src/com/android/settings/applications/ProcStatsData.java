@@ -26,6 +26,7 @@ import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import com.android.internal.app.IProcessStats;
@@ -40,6 +41,7 @@ import com.android.settings.Utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 
@@ -51,12 +53,20 @@ public class ProcStatsData {
 
     private static ProcessStats sStatsXfer;
 
+    // Decoded stats by duration, reused while they are fresh enough when switching durations,
+    // which avoids reading the stats parcel again. Forced loads always read the parcel.
+    private static final int MAX_DECODED_STATS = 4;
+    private static final long DECODED_STATS_MAX_AGE = 60 * 1000;
+    private static final LruCache<Long, DecodedStats> sDecodedStats =
+            new LruCache<Long, DecodedStats>(MAX_DECODED_STATS);
+
     private PackageManager mPm;
     private Context mContext;
     private long memTotalTime;
 
     private IProcessStats mProcessStats;
     private ProcessStats mStats;
+    private DecodedStats mDecodedStats;
 
     private boolean mUseUss;
     private long mDuration;
@@ -76,8 +86,9 @@ public class ProcStatsData {
                 ServiceManager.getService(ProcessStats.SERVICE_NAME));
         mMemStates = ProcessStats.ALL_MEM_ADJ;
         mStates = ProcessStats.BACKGROUND_PROC_STATES;
-        if (useXfer) {
+        if (useXfer && sStatsXfer != null) {
             mStats = sStatsXfer;
+            mDecodedStats = new DecodedStats(sStatsXfer);
         }
     }
 
@@ -120,8 +131,12 @@ public class ProcStatsData {
 
     public void setDuration(long duration) {
         if (duration != mDuration) {
+            // Only a switch from another duration may reuse decoded stats, the first load of a
+            // screen always reads the stats parcel
+            final boolean switching = mDuration != 0;
             mDuration = duration;
-            refreshStats(true);
+            load(switching);
+            refreshStats(false);
         }
     }
 
@@ -135,9 +150,29 @@ public class ProcStatsData {
 
     public void refreshStats(boolean forceLoad) {
         if (mStats == null || forceLoad) {
-            load();
+            load(false);
+        }
+
+        final String resultKey = Arrays.toString(mMemStates) + "/" + Arrays.toString(mStates);
+        synchronized (mDecodedStats) {
+            Result result = mDecodedStats.results.get(resultKey);
+            if (result == null) {
+                result = computeResult();
+                mDecodedStats.results.put(resultKey, result);
+            } else if (DEBUG) {
+                Log.d(TAG, "Reusing stats aggregated for " + resultKey);
+            }
+            memTotalTime = result.memTotalTime;
+            mMemInfo = result.memInfo;
+            // Callers sort the list in place
+            pkgEntries = new ArrayList<>(result.pkgEntries);
         }
+    }
 
+    /**
+     * Aggregates the stats with the current memory state and process state filters.
+     */
+    private Result computeResult() {
         pkgEntries = new ArrayList<>();
 
         long now = SystemClock.uptimeMillis();
@@ -164,6 +199,8 @@ public class ProcStatsData {
         ProcStatsPackageEntry osPkg = createOsEntry(bgTotals, runTotals, totalMem,
                 mMemInfo.baseCacheRam);
         pkgEntries.add(osPkg);
+
+        return new Result(pkgEntries, mMemInfo, memTotalTime);
     }
 
     private void createPkgMap(ArrayList<ProcStatsEntry> procEntries, ProcessDataCollection bgTotals,
@@ -265,79 +302,46 @@ public class ProcStatsData {
         final ArrayList<ProcStatsEntry> procEntries = new ArrayList<>();
         if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
 
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg = 0, N = mStats.mPackages.getMap().size(); ipkg < N; ipkg++) {
-            final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids = mStats.mPackages
-                    .getMap().valueAt(ipkg);
-            for (int iu = 0; iu < pkgUids.size(); iu++) {
-                final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
-                for (int iv = 0; iv < vpkgs.size(); iv++) {
-                    final ProcessStats.PackageState st = vpkgs.valueAt(iv);
-                    for (int iproc = 0; iproc < st.mProcesses.size(); iproc++) {
-                        final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                        final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                                pkgProc.mUid);
-                        if (proc == null) {
-                            Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                    + "/" + st.mUid + " proc name " + pkgProc.mName);
-                            continue;
-                        }
-                        ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                        if (ent == null) {
-                            ent = new ProcStatsEntry(proc, st.mPackageName, bgTotals, runTotals,
-                                    mUseUss);
-                            if (ent.mRunWeight > 0) {
-                                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                            + proc.mUid + ": time="
-                                            + ProcessStatsUi.makeDuration(ent.mRunDuration) + " ("
-                                            + ((((double) ent.mRunDuration) / memTotalTime) * 100)
-                                            + "%)"
-                                            + " pss=" + ent.mAvgRunMem);
-                                entriesMap.put(proc.mName, proc.mUid, ent);
-                                procEntries.add(ent);
-                            }
-                        } else {
-                            ent.addPackage(st.mPackageName);
-                        }
-                    }
-                }
+        final ArrayList<IndexedProc> procIndex = mDecodedStats.getProcIndex();
+        for (int i = 0, N = procIndex.size(); i < N; i++) {
+            final IndexedProc indexed = procIndex.get(i);
+            final ProcessStats.ProcessState proc = indexed.proc;
+            final ProcStatsEntry ent = new ProcStatsEntry(proc, indexed.packages.get(0),
+                    bgTotals, runTotals, mUseUss);
+            if (ent.mRunWeight <= 0) {
+                continue;
             }
-        }
-
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        for (int ip = 0, N = mStats.mPackages.getMap().size(); ip < N; ip++) {
-            SparseArray<SparseArray<ProcessStats.PackageState>> uids = mStats.mPackages.getMap()
-                    .valueAt(ip);
-            for (int iu = 0; iu < uids.size(); iu++) {
-                SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
-                for (int iv = 0; iv < vpkgs.size(); iv++) {
-                    ProcessStats.PackageState ps = vpkgs.valueAt(iv);
-                    for (int is = 0, NS = ps.mServices.size(); is < NS; is++) {
-                        ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                        if (ss.mProcessName != null) {
-                            ProcStatsEntry ent = entriesMap.get(ss.mProcessName,
-                                    uids.keyAt(iu));
-                            if (ent != null) {
-                                if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                            + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                            + ss.mProcessName);
-                                ent.addService(ss);
-                            } else {
-                                Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                        + " for service " + ss.mName);
-                            }
-                        }
-                    }
-                }
+            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                        + proc.mUid + ": time="
+                        + ProcessStatsUi.makeDuration(ent.mRunDuration) + " ("
+                        + ((((double) ent.mRunDuration) / memTotalTime) * 100)
+                        + "%)"
+                        + " pss=" + ent.mAvgRunMem);
+            for (int ip = 1; ip < indexed.packages.size(); ip++) {
+                ent.addPackage(indexed.packages.get(ip));
+            }
+            for (int is = 0; is < indexed.services.size(); is++) {
+                ent.addService(indexed.services.get(is));
             }
+            procEntries.add(ent);
         }
 
         return procEntries;
     }
 
-    private void load() {
+    /**
+     * Loads the stats of the current duration, from the decoded stats cache if allowed and
+     * fresh enough, or else from the stats parcel, replacing the cached ones.
+     */
+    private void load(boolean useCache) {
+        final DecodedStats cached = useCache ? sDecodedStats.get(mDuration) : null;
+        if (cached != null
+                && SystemClock.uptimeMillis() - cached.loadTime < DECODED_STATS_MAX_AGE) {
+            if (DEBUG) Log.d(TAG, "Reusing stats decoded for duration " + mDuration);
+            mStats = cached.stats;
+            mDecodedStats = cached;
+            return;
+        }
         try {
             ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
             mStats = new ProcessStats(false);
@@ -347,14 +351,124 @@ public class ProcStatsData {
                 is.close();
             } catch (IOException e) {
             }
+            mDecodedStats = new DecodedStats(mStats);
             if (mStats.mReadError != null) {
                 Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+                sDecodedStats.remove(mDuration);
+            } else {
+                sDecodedStats.put(mDuration, mDecodedStats);
             }
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
         }
     }
 
+    /**
+     * Decoded stats, with the processes indexed by their packages and services and the
+     * aggregations computed so far, by memory state and process state filters.
+     */
+    private static final class DecodedStats {
+        final ProcessStats stats;
+        final long loadTime;
+        final ArrayMap<String, Result> results = new ArrayMap<>();
+        private ArrayList<IndexedProc> mProcIndex;
+
+        DecodedStats(ProcessStats stats) {
+            this.stats = stats;
+            this.loadTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Returns the processes run by the packages, in the order they are first found in the
+         * packages, with the packages and services of each. This only depends on the stats, not
+         * on the filters, so it is built once.
+         */
+        synchronized ArrayList<IndexedProc> getProcIndex() {
+            if (mProcIndex != null) {
+                return mProcIndex;
+            }
+            mProcIndex = new ArrayList<>();
+            final ProcessMap<IndexedProc> procMap = new ProcessMap<IndexedProc>();
+            for (int ipkg = 0, N = stats.mPackages.getMap().size(); ipkg < N; ipkg++) {
+                final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids = stats.mPackages
+                        .getMap().valueAt(ipkg);
+                for (int iu = 0; iu < pkgUids.size(); iu++) {
+                    final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
+                    for (int iv = 0; iv < vpkgs.size(); iv++) {
+                        final ProcessStats.PackageState st = vpkgs.valueAt(iv);
+                        for (int iproc = 0; iproc < st.mProcesses.size(); iproc++) {
+                            final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                            final ProcessStats.ProcessState proc = stats.mProcesses.get(
+                                    pkgProc.mName, pkgProc.mUid);
+                            if (proc == null) {
+                                Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                        + "/" + st.mUid + " proc name " + pkgProc.mName);
+                                continue;
+                            }
+                            IndexedProc indexed = procMap.get(proc.mName, proc.mUid);
+                            if (indexed == null) {
+                                indexed = new IndexedProc(proc);
+                                procMap.put(proc.mName, proc.mUid, indexed);
+                                mProcIndex.add(indexed);
+                            }
+                            indexed.packages.add(st.mPackageName);
+                        }
+                    }
+                }
+            }
+
+            if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
+
+            // Add in service info.
+            for (int ip = 0, N = stats.mPackages.getMap().size(); ip < N; ip++) {
+                SparseArray<SparseArray<ProcessStats.PackageState>> uids = stats.mPackages.getMap()
+                        .valueAt(ip);
+                for (int iu = 0; iu < uids.size(); iu++) {
+                    SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
+                    for (int iv = 0; iv < vpkgs.size(); iv++) {
+                        ProcessStats.PackageState ps = vpkgs.valueAt(iv);
+                        for (int is = 0, NS = ps.mServices.size(); is < NS; is++) {
+                            ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                            if (ss.mProcessName != null) {
+                                IndexedProc indexed = procMap.get(ss.mProcessName,
+                                        uids.keyAt(iu));
+                                if (indexed != null) {
+                                    indexed.services.add(ss);
+                                } else {
+                                    Log.w(TAG, "No process " + ss.mProcessName + "/"
+                                            + uids.keyAt(iu) + " for service " + ss.mName);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            return mProcIndex;
+        }
+    }
+
+    private static final class IndexedProc {
+        final ProcessStats.ProcessState proc;
+        final ArrayList<String> packages = new ArrayList<>(1);
+        final ArrayList<ProcessStats.ServiceState> services = new ArrayList<>();
+
+        IndexedProc(ProcessStats.ProcessState proc) {
+            this.proc = proc;
+        }
+    }
+
+    private static final class Result {
+        final ArrayList<ProcStatsPackageEntry> pkgEntries;
+        final MemInfo memInfo;
+        final long memTotalTime;
+
+        Result(ArrayList<ProcStatsPackageEntry> pkgEntries, MemInfo memInfo, long memTotalTime) {
+            this.pkgEntries = pkgEntries;
+            this.memInfo = memInfo;
+            this.memTotalTime = memTotalTime;
+        }
+    }
+
     public static class MemInfo {
         double realUsedRam;
         double realFreeRam;
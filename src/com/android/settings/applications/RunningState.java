@@ -33,11 +33,13 @@ import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Drawable.ConstantState;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -62,6 +64,8 @@ import java.util.List;
 public class RunningState {
     static final String TAG = "RunningState";
     static final boolean DEBUG_COMPARE = false;
+    // Also count the allocations made by each update; this slows down the whole process
+    static final boolean DEBUG_ALLOCATIONS = false;
 
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
@@ -73,6 +77,12 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // The contents update delay doubles while the services and processes do not change
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
+    // Change of the memory used by the processes shown that resets the update delay, so that
+    // the memory figures do not stay behind while the services and processes stay the same
+    static final long MEMORY_CHANGE_THRESHOLD = 1024 * 1024;
 
     static final int MAX_SERVICES = 100;
 
@@ -126,17 +136,23 @@ public class RunningState {
     final SparseArray<MergedItem> mOtherUserBackgroundItems = new SparseArray<MergedItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, reused by each update so
+    // that a steady state does not allocate.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mTmpAppProcessPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids = new int[0];
 
     int mSequence = 0;
 
@@ -219,6 +235,23 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // Delay until the next contents update, see nextUpdateDelayLocked()
+    long mUpdateDelay = CONTENTS_UPDATE_DELAY;
+    boolean mResetUpdateDelay;
+    // Hash of the running services and processes, and whether it changed in the last update
+    int mTablesHash;
+    boolean mTablesChanged;
+    // Memory used by the processes shown when it last changed by MEMORY_CHANGE_THRESHOLD or
+    // more, and whether it did in the last update
+    long mChangedProcessMemory;
+    boolean mProcessMemoryChanged;
+
+    // Cost of the updates made by the background thread
+    long mUpdateCount;
+    long mUpdateTotalNanos;
+    long mUpdateMaxNanos;
+    long mUpdateAllocCount;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -240,11 +273,15 @@ public class RunningState {
                         }
                     }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = measuredUpdate(mApplicationContext, mAm) ? 1 : 0;
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    final long delay;
+                    synchronized (mLock) {
+                        delay = nextUpdateDelayLocked();
+                    }
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -349,6 +386,8 @@ public class RunningState {
 
         long mActiveSince;
         long mSize;
+        // Size that mSizeStr was formatted from
+        long mFormattedSize = -1;
         String mSizeStr;
         String mCurSizeStr;
         boolean mNeedDivider;
@@ -551,7 +590,8 @@ public class RunningState {
         
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
-            if (mCurSeq == curSeq) {
+            if (mCurSeq == curSeq && mSize != mFormattedSize) {
+                mFormattedSize = mSize;
                 String sizeStr = Formatter.formatShortFileSize(
                         context, mSize);
                 if (!sizeStr.equals(mSizeStr)){
@@ -694,7 +734,12 @@ public class RunningState {
                     mSize += mOtherProcesses.get(i).mSize;
                 }
             }
-            
+
+            if (mSize == mFormattedSize) {
+                // Avoid formatting the same size again
+                return false;
+            }
+            mFormattedSize = mSize;
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
@@ -785,6 +830,9 @@ public class RunningState {
         mResumed = false;
         mBackgroundThread = new HandlerThread("RunningState:Background");
         mBackgroundThread.start();
+        if (DEBUG_ALLOCATIONS) {
+            Debug.startAllocCounting();
+        }
         mBackgroundHandler = new BackgroundHandler(mBackgroundThread.getLooper());
         mUmBroadcastReceiver.register(mApplicationContext);
     }
@@ -802,20 +850,71 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // The pending update may have been backed off: update now instead
+            mResetUpdateDelay = true;
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
 
     void updateNow() {
         synchronized (mLock) {
+            mResetUpdateDelay = true;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    /**
+     * Returns the delay until the next contents update: it goes back to
+     * {@link #CONTENTS_UPDATE_DELAY} when the services or processes changed, when their memory
+     * usage changed by {@link #MEMORY_CHANGE_THRESHOLD} or more, or when the user interacted
+     * with the UI, and doubles otherwise.
+     */
+    private long nextUpdateDelayLocked() {
+        if (mTablesChanged || mProcessMemoryChanged || mResetUpdateDelay) {
+            mUpdateDelay = CONTENTS_UPDATE_DELAY;
+            mResetUpdateDelay = false;
+        } else {
+            mUpdateDelay = Math.min(mUpdateDelay * 2, MAX_CONTENTS_UPDATE_DELAY);
+        }
+        return mUpdateDelay;
+    }
+
+    /**
+     * Hashes the fields of the services and processes that can change what is shown, but not
+     * their memory usage, which is checked on its own, see {@link #MEMORY_CHANGE_THRESHOLD}.
+     */
+    private static int hashTables(List<ActivityManager.RunningServiceInfo> services,
+            int numServices, List<ActivityManager.RunningAppProcessInfo> processes,
+            int numProcesses) {
+        int hash = 17;
+        for (int i=0; i<numServices; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            hash = 31 * hash + si.service.hashCode();
+            hash = 31 * hash + si.uid;
+            hash = 31 * hash + si.pid;
+            hash = 31 * hash + (int) (si.activeSince ^ (si.activeSince >>> 32));
+            hash = 31 * hash + (int) (si.restarting ^ (si.restarting >>> 32));
+            hash = 31 * hash + (si.foreground ? 1 : 0);
+            hash = 31 * hash + (si.started ? 1 : 0);
+            hash = 31 * hash + si.clientLabel;
+            hash = 31 * hash + si.flags;
+        }
+        for (int i=0; i<numProcesses; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            hash = 31 * hash + pi.pid;
+            hash = 31 * hash + pi.uid;
+            hash = 31 * hash + pi.importance;
+            hash = 31 * hash + pi.importanceReasonCode;
+            hash = 31 * hash + pi.importanceReasonPid;
+            hash = 31 * hash + pi.lru;
+            hash = 31 * hash + pi.flags;
+        }
+        return hash;
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -838,6 +937,7 @@ public class RunningState {
             mResumed = false;
             mRefreshUiListener = null;
             mHandler.removeMessages(MSG_UPDATE_TIME);
+            logUpdateStatsLocked();
         }
     }
 
@@ -862,6 +962,62 @@ public class RunningState {
         mRunningProcesses.clear();
         mProcessItems.clear();
         mAllProcessItems.clear();
+        synchronized (mLock) {
+            // The configuration may have changed: format the sizes of the items kept again
+            for (int i=0; i<mBackgroundItems.size(); i++) {
+                mBackgroundItems.get(i).mFormattedSize = -1;
+            }
+            for (int i=0; i<mUserBackgroundItems.size(); i++) {
+                mUserBackgroundItems.get(i).mFormattedSize = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the merged item showing a background process, reusing the one it already has
+     * when possible so that the background list does not allocate new items on each change.
+     */
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc
+                || mergedItem.mServices.size() > 0 || mergedItem.mOtherProcesses.size() > 0) {
+            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+            mergedItem.mProcess = proc;
+        }
+        return mergedItem;
+    }
+
+    private boolean measuredUpdate(Context context, ActivityManager am) {
+        final int allocCount = DEBUG_ALLOCATIONS ? Debug.getThreadAllocCount() : 0;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final boolean changed = update(context, am);
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        synchronized (mLock) {
+            mUpdateCount++;
+            mUpdateTotalNanos += elapsed;
+            if (elapsed > mUpdateMaxNanos) {
+                mUpdateMaxNanos = elapsed;
+            }
+            if (DEBUG_ALLOCATIONS) {
+                mUpdateAllocCount += Debug.getThreadAllocCount() - allocCount;
+            }
+        }
+        return changed;
+    }
+
+    private void logUpdateStatsLocked() {
+        if (mUpdateCount == 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("Updates: ").append(mUpdateCount);
+        sb.append(", average: ").append(mUpdateTotalNanos / mUpdateCount / 1000).append(" us");
+        sb.append(", max: ").append(mUpdateMaxNanos / 1000).append(" us");
+        sb.append(", current delay: ").append(mUpdateDelay).append(" ms");
+        if (DEBUG_ALLOCATIONS) {
+            sb.append(", allocations per update: ").append(mUpdateAllocCount / mUpdateCount);
+        }
+        Log.d(TAG, sb.toString());
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -932,10 +1088,22 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+
+        final int tablesHash = hashTables(services, NS, processes, NP);
+        synchronized (mLock) {
+            mTablesChanged = tablesHash != mTablesHash || !mHaveData;
+            mTablesHash = tablesHash;
+        }
+
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i == mTmpAppProcessPool.size()) {
+                mTmpAppProcessPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mTmpAppProcessPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1157,7 +1325,8 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1271,6 +1440,8 @@ public class RunningState {
                 }
             }
 
+            sortedProcesses.clear();
+
             synchronized (mLock) {
                 mItems = newItems;
                 mMergedItems = newMergedItems;
@@ -1315,7 +1486,10 @@ public class RunningState {
         boolean diffUsers = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            if (mTmpPids.length != numProc) {
+                mTmpPids = new int[numProc];
+            }
+            final int[] pids = mTmpPids;
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
             }
@@ -1332,8 +1506,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainBackgroundItem(proc);
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
@@ -1345,8 +1518,7 @@ public class RunningState {
                                 diffUsers |= mergedItem.mUserId != mMyUserId;
                                 newBackgroundItems.add(mergedItem);
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainBackgroundItem(proc);
                             diffUsers |= mergedItem.mUserId != mMyUserId;
                             newBackgroundItems.add(mergedItem);
                         } else {
@@ -1420,6 +1592,13 @@ public class RunningState {
             mBackgroundProcessMemory = backgroundProcessMemory;
             mForegroundProcessMemory = foregroundProcessMemory;
             mServiceProcessMemory = serviceProcessMemory;
+            final long processMemory = backgroundProcessMemory + foregroundProcessMemory
+                    + serviceProcessMemory;
+            mProcessMemoryChanged = Math.abs(processMemory - mChangedProcessMemory)
+                    >= MEMORY_CHANGE_THRESHOLD;
+            if (mProcessMemoryChanged) {
+                mChangedProcessMemory = processMemory;
+            }
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
@@ -1438,7 +1617,10 @@ public class RunningState {
     
     void setWatchingBackgroundItems(boolean watching) {
         synchronized (mLock) {
-            mWatchingBackgroundItems = watching;
+            if (mWatchingBackgroundItems != watching) {
+                mWatchingBackgroundItems = watching;
+                mResetUpdateDelay = true;
+            }
         }
     }
 
@@ -108,9 +108,8 @@ public class DashboardContainerView extends ViewGroup {
 
             int row = cursor / mNumColumns;
 
-            if (row == mNumRows - 1) {
-                child.setDividerVisibility(false);
-            }
+            // Tile views are reused, so the divider must also be restored
+            child.setDividerVisibility(row != mNumRows - 1);
 
             // Push the item to the next row if it can't fit on this one
             if ((col + colSpan) > mNumColumns) {
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the last dashboard categories built by the SettingsActivity, so that a
+ * cold start can draw the dashboard without building the categories first.
+ *
+ * The categories are stored in their Parcel form, which is only stable for a given build: the
+ * snapshot is keyed by the build fingerprint, the locale and a package-change sequence number,
+ * and is ignored when any of them changed.
+ */
+public class DashboardSnapshot {
+
+    private static final String LOG_TAG = "DashboardSnapshot";
+
+    private static final int VERSION = 1;
+
+    private static final String SNAPSHOT_FILE = "dashboard_snapshot";
+
+    private static final String PREFS_NAME = "dashboard_snapshot";
+    private static final String PREF_PACKAGE_SEQUENCE = "package_sequence";
+
+    // Content of the snapshot file as last read or written, to avoid rewriting the same bytes
+    private static byte[] sLastContent;
+
+    /**
+     * Bumps the package-change sequence number, invalidating the current snapshot.
+     */
+    public static void onPackagesChanged(Context context) {
+        final SharedPreferences prefs = getPreferences(context);
+        prefs.edit().putInt(PREF_PACKAGE_SEQUENCE,
+                prefs.getInt(PREF_PACKAGE_SEQUENCE, 0) + 1).apply();
+    }
+
+    /**
+     * Returns the Parcel form of the given categories, or null if they cannot be flattened.
+     */
+    public static byte[] marshall(List<DashboardCategory> categories) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(categories);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot flatten the dashboard categories", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Reads the snapshot into the target list.
+     *
+     * @return The Parcel form of the categories read, or null if there is no valid snapshot.
+     */
+    public static byte[] read(Context context, List<DashboardCategory> target) {
+        final File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        final AtomicFile atomicFile = new AtomicFile(file);
+        DataInputStream in = null;
+        try {
+            final byte[] content = atomicFile.readFully();
+            in = new DataInputStream(new ByteArrayInputStream(content));
+            if (in.readInt() != VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())
+                    || !getLocale(context).equals(in.readUTF())
+                    || in.readInt() != getPackageSequence(context)) {
+                return null;
+            }
+            final byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+
+            final Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(payload, 0, payload.length);
+                parcel.setDataPosition(0);
+                parcel.readTypedList(target, DashboardCategory.CREATOR);
+            } finally {
+                parcel.recycle();
+            }
+            synchronized (DashboardSnapshot.class) {
+                sLastContent = content;
+            }
+            return payload;
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot read the dashboard snapshot", e);
+            target.clear();
+            atomicFile.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the Parcel form of the categories as the new snapshot. This does disk I/O and
+     * should not be called from the UI thread.
+     */
+    public static void write(Context context, byte[] payload) {
+        final byte[] content;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 256);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeUTF(getLocale(context));
+            out.writeInt(getPackageSequence(context));
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+            content = bytes.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen with a ByteArrayOutputStream
+            return;
+        }
+
+        synchronized (DashboardSnapshot.class) {
+            if (Arrays.equals(content, sLastContent)) {
+                return;
+            }
+            sLastContent = content;
+        }
+
+        final AtomicFile atomicFile = new AtomicFile(getFile(context));
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            fos.write(content);
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write the dashboard snapshot", e);
+            atomicFile.failWrite(fos);
+            synchronized (DashboardSnapshot.class) {
+                sLastContent = null;
+            }
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), SNAPSHOT_FILE);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static int getPackageSequence(Context context) {
+        return getPreferences(context).getInt(PREF_PACKAGE_SEQUENCE, 0);
+    }
+
+    private static String getLocale(Context context) {
+        return context.getResources().getConfiguration().locale.toString();
+    }
+}
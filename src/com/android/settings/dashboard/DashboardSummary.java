@@ -26,7 +26,9 @@ import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
@@ -43,14 +45,49 @@ import com.android.settings.InstrumentedFragment;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 
 public class DashboardSummary extends InstrumentedFragment {
     private static final String LOG_TAG = "DashboardSummary";
 
+    // Max number of detached tile views kept for reuse
+    private static final int MAX_POOLED_TILE_VIEWS = 8;
+
     private LayoutInflater mLayoutInflater;
     private ViewGroup mDashboard;
 
+    /**
+     * Views of a category currently shown, with its tile views by tile key.
+     */
+    private static class CategoryHolder {
+        final View view;
+        final TextView title;
+        final ViewGroup content;
+        ArrayMap<String, DashboardTileView> tiles = new ArrayMap<String, DashboardTileView>();
+
+        CategoryHolder(View view) {
+            this.view = view;
+            title = (TextView) view.findViewById(R.id.category_title);
+            content = (ViewGroup) view.findViewById(R.id.category_content);
+        }
+    }
+
+    // Categories currently shown, by category key
+    private ArrayMap<String, CategoryHolder> mCategoryHolders =
+            new ArrayMap<String, CategoryHolder>();
+    private final ArrayDeque<DashboardTileView> mTileViewPool = new ArrayDeque<DashboardTileView>();
+
+    // Counters of the last rebuild
+    private int mInsertedCount;
+    private int mRemovedCount;
+    private int mReboundCount;
+
+    // Passed to rebuildUI() for binding again the tiles whose icon comes from any package
+    // other than Settings
+    private static final String ALL_OTHER_PACKAGES = "*";
+
     private static final int MSG_REBUILD_UI = 1;
     private Handler mHandler = new Handler() {
         @Override
@@ -58,7 +95,8 @@ public class DashboardSummary extends InstrumentedFragment {
             switch (msg.what) {
                 case MSG_REBUILD_UI: {
                     final Context context = getActivity();
-                    rebuildUI(context);
+                    // Packages may have been updated while paused, without notifying us
+                    rebuildUI(context, true, ALL_OTHER_PACKAGES);
                 } break;
             }
         }
@@ -67,11 +105,23 @@ public class DashboardSummary extends InstrumentedFragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            rebuildUI(context);
+            DashboardSnapshot.onPackagesChanged(context);
+            // An updated package usually keeps the resource ids of its icons, not the icons
+            final String packageName = intent.getData() != null
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            rebuildUI(context, true, packageName != null ? packageName : ALL_OTHER_PACKAGES);
         }
     }
     private HomePackageReceiver mHomePackageReceiver = new HomePackageReceiver();
 
+    private final SettingsActivity.DashboardCategoriesListener mCategoriesListener =
+            new SettingsActivity.DashboardCategoriesListener() {
+        @Override
+        public void onDashboardCategoriesChanged() {
+            rebuildUI(getActivity(), false, null);
+        }
+    };
+
     @Override
     protected int getMetricsCategory() {
         return MetricsLogger.DASHBOARD_SUMMARY;
@@ -95,6 +145,7 @@ public class DashboardSummary extends InstrumentedFragment {
     public void onResume() {
         super.onResume();
 
+        ((SettingsActivity) getActivity()).setDashboardCategoriesListener(mCategoriesListener);
         sendRebuildUI();
 
         final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
@@ -109,6 +160,7 @@ public class DashboardSummary extends InstrumentedFragment {
     public void onPause() {
         super.onPause();
 
+        ((SettingsActivity) getActivity()).setDashboardCategoriesListener(null);
         getActivity().unregisterReceiver(mHomePackageReceiver);
     }
 
@@ -120,56 +172,206 @@ public class DashboardSummary extends InstrumentedFragment {
 
         final View rootView = inflater.inflate(R.layout.dashboard, container, false);
         mDashboard = (ViewGroup) rootView.findViewById(R.id.dashboard_container);
+        mCategoryHolders.clear();
+        mTileViewPool.clear();
 
         return rootView;
     }
 
-    private void rebuildUI(Context context) {
+    /**
+     * Updates the dashboard to show the current categories. The categories and tiles are
+     * matched with the ones already shown by key: only the new ones are inflated (or taken from
+     * the pool of recycled tile views), only the ones whose content changed are bound again, and
+     * the views are only moved when their order changed.
+     *
+     * @param updatedPackage package whose tile icons are bound again even if their content
+     *     did not change, or null
+     */
+    private void rebuildUI(Context context, boolean forceRefresh, String updatedPackage) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
         }
 
-        long start = System.currentTimeMillis();
+        final long start = SystemClock.elapsedRealtimeNanos();
         final Resources res = getResources();
-
-        mDashboard.removeAllViews();
+        mInsertedCount = 0;
+        mRemovedCount = 0;
+        mReboundCount = 0;
 
         List<DashboardCategory> categories =
-                ((SettingsActivity) context).getDashboardCategories(true);
+                ((SettingsActivity) context).getDashboardCategories(forceRefresh);
 
         final int count = categories.size();
+        final ArrayMap<String, CategoryHolder> holders =
+                new ArrayMap<String, CategoryHolder>(count);
+        final ArrayList<View> categoryViews = new ArrayList<View>(count);
 
         for (int n = 0; n < count; n++) {
             DashboardCategory category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
+            String key = getCategoryKey(category);
+            while (holders.containsKey(key)) {
+                key += "+";
+            }
+            CategoryHolder holder = mCategoryHolders.remove(key);
+            if (holder == null) {
+                holder = new CategoryHolder(mLayoutInflater.inflate(R.layout.dashboard_category,
+                        mDashboard, false));
+                mInsertedCount++;
+            }
 
-            TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
-            categoryLabel.setText(category.getTitle(res));
+            final CharSequence title = category.getTitle(res);
+            if (!TextUtils.equals(holder.title.getText(), title)) {
+                holder.title.setText(title);
+            }
+            updateTiles(context, res, holder, category, updatedPackage);
 
-            ViewGroup categoryContent =
-                    (ViewGroup) categoryView.findViewById(R.id.category_content);
+            holders.put(key, holder);
+            categoryViews.add(holder.view);
+        }
 
-            final int tilesCount = category.getTilesCount();
-            for (int i = 0; i < tilesCount; i++) {
-                DashboardTile tile = category.getTile(i);
+        // The categories left have been removed, keep their tile views for reuse
+        for (int n = mCategoryHolders.size() - 1; n >= 0; n--) {
+            final CategoryHolder holder = mCategoryHolders.valueAt(n);
+            for (int i = holder.tiles.size() - 1; i >= 0; i--) {
+                recycleTileView(holder.content, holder.tiles.valueAt(i));
+            }
+            mRemovedCount++;
+        }
+        mCategoryHolders = holders;
+
+        updateChildren(mDashboard, categoryViews);
+
+        long delta = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        Log.d(LOG_TAG, "rebuildUI took: " + delta + " us (inserted: " + mInsertedCount +
+                ", removed: " + mRemovedCount + ", rebound: " + mReboundCount + ")");
+    }
 
-                DashboardTileView tileView = new DashboardTileView(context);
+    private void updateTiles(Context context, Resources res, CategoryHolder holder,
+            DashboardCategory category, String updatedPackage) {
+        final int tilesCount = category.getTilesCount();
+        final ArrayMap<String, DashboardTileView> tileViews =
+                new ArrayMap<String, DashboardTileView>(tilesCount);
+        final ArrayList<View> views = new ArrayList<View>(tilesCount);
+
+        for (int i = 0; i < tilesCount; i++) {
+            DashboardTile tile = category.getTile(i);
+
+            String key = getTileKey(tile);
+            while (tileViews.containsKey(key)) {
+                key += "+";
+            }
+            DashboardTileView tileView = holder.tiles.remove(key);
+            if (tileView == null) {
+                tileView = mTileViewPool.poll();
+                if (tileView == null) {
+                    tileView = new DashboardTileView(context);
+                }
+                updateTileView(context, res, tile, tileView.getImageView(),
+                        tileView.getTitleTextView(), tileView.getStatusTextView());
+                mInsertedCount++;
+            } else if (!hasSameContent(tileView.getTile(), tile)
+                    || needsRebind(context, tile, updatedPackage)) {
                 updateTileView(context, res, tile, tileView.getImageView(),
                         tileView.getTitleTextView(), tileView.getStatusTextView());
+                mReboundCount++;
+            }
+
+            tileView.setTile(tile);
+
+            tileViews.put(key, tileView);
+            views.add(tileView);
+        }
+
+        for (int i = holder.tiles.size() - 1; i >= 0; i--) {
+            recycleTileView(holder.content, holder.tiles.valueAt(i));
+            mRemovedCount++;
+        }
+        holder.tiles = tileViews;
+
+        updateChildren(holder.content, views);
+    }
 
-                tileView.setTile(tile);
+    private void recycleTileView(ViewGroup parent, DashboardTileView tileView) {
+        parent.removeView(tileView);
+        tileView.setTile(null);
+        if (mTileViewPool.size() < MAX_POOLED_TILE_VIEWS) {
+            mTileViewPool.add(tileView);
+        }
+    }
 
-                categoryContent.addView(tileView);
+    /**
+     * Makes the children of the parent match the given views, only adding or moving the views
+     * that are not already at their position.
+     */
+    private static void updateChildren(ViewGroup parent, List<View> views) {
+        final int count = views.size();
+        for (int n = 0; n < count; n++) {
+            final View view = views.get(n);
+            if (n < parent.getChildCount() && parent.getChildAt(n) == view) {
+                continue;
             }
+            if (view.getParent() == parent) {
+                parent.removeView(view);
+            }
+            parent.addView(view, n);
+        }
+        final int extra = parent.getChildCount() - count;
+        if (extra > 0) {
+            parent.removeViews(count, extra);
+        }
+    }
+
+    private static String getCategoryKey(DashboardCategory category) {
+        if (category.key != null) {
+            return "key:" + category.key;
+        }
+        return "title:" + category.titleRes + ":" + category.title;
+    }
 
-            // Add the category
-            mDashboard.addView(categoryView);
+    private static String getTileKey(DashboardTile tile) {
+        if (tile.id != DashboardTile.TILE_ID_UNDEFINED) {
+            return "id:" + tile.id;
+        }
+        if (tile.intent != null && tile.intent.getComponent() != null) {
+            return "component:" + tile.intent.getComponent().flattenToShortString();
+        }
+        if (tile.fragment != null) {
+            return "fragment:" + tile.fragment;
+        }
+        return "title:" + tile.titleRes + ":" + tile.title;
+    }
+
+    /**
+     * Returns whether both tiles are displayed the same way, so a tile view bound to the first
+     * one does not need to be bound again.
+     */
+    private static boolean hasSameContent(DashboardTile a, DashboardTile b) {
+        if (a == null) {
+            return false;
+        }
+        return a.iconRes == b.iconRes
+                && TextUtils.equals(a.iconPkg, b.iconPkg)
+                && a.titleRes == b.titleRes
+                && TextUtils.equals(a.title, b.title)
+                && a.summaryRes == b.summaryRes
+                && TextUtils.equals(a.summary, b.summary);
+    }
+
+    /**
+     * Returns whether the icon of the tile comes from the updated package, so it has to be
+     * loaded again even if its resource id did not change.
+     */
+    private static boolean needsRebind(Context context, DashboardTile tile,
+            String updatedPackage) {
+        if (updatedPackage == null || TextUtils.isEmpty(tile.iconPkg)) {
+            return false;
+        }
+        if (ALL_OTHER_PACKAGES.equals(updatedPackage)) {
+            return !tile.iconPkg.equals(context.getPackageName());
         }
-        long delta = System.currentTimeMillis() - start;
-        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+        return tile.iconPkg.equals(updatedPackage);
     }
 
     private void updateTileView(Context context, Resources res, DashboardTile tile,
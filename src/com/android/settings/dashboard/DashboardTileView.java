@@ -77,6 +77,10 @@ public class DashboardTileView extends FrameLayout implements View.OnClickListen
         mTile = tile;
     }
 
+    DashboardTile getTile() {
+        return mTile;
+    }
+
     public void setDividerVisibility(boolean visible) {
         mDivider.setVisibility(visible ? View.VISIBLE : View.GONE);
     }
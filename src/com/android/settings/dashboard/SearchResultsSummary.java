@@ -23,7 +23,6 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -58,11 +57,11 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private ListView mResultsListView;
     private SearchResultsAdapter mResultsAdapter;
-    private UpdateSearchResultsTask mUpdateSearchResultsTask;
 
     private ListView mSuggestionsListView;
     private SuggestionsAdapter mSuggestionsAdapter;
-    private UpdateSuggestionsTask mUpdateSuggestionsTask;
+
+    private SearchScheduler mSearchScheduler;
 
     private ViewGroup mLayoutSuggestions;
     private ViewGroup mLayoutResults;
@@ -72,46 +71,23 @@ public class SearchResultsSummary extends InstrumentedFragment {
     private boolean mShowResults;
 
     /**
-     * A basic AsyncTask for updating the query results cursor
-     */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
-        @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
-        }
-
-        @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                MetricsLogger.action(getContext(), MetricsLogger.ACTION_SEARCH_RESULTS,
-                        cursor.getCount());
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    /**
-     * A basic AsyncTask for updating the suggestions cursor
+     * Delivers the results of the latest search or suggestions query
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private final SearchScheduler.Callback mSchedulerCallback = new SearchScheduler.Callback() {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        public void onSearchResults(Cursor cursor) {
+            MetricsLogger.action(getContext(), MetricsLogger.ACTION_SEARCH_RESULTS,
+                    cursor.getCount());
+            setResultsCursor(cursor);
+            setResultsVisibility(cursor.getCount() > 0);
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setSuggestionsCursor(cursor);
-                setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        public void onSuggestions(Cursor cursor) {
+            setSuggestionsCursor(cursor);
+            setSuggestionsVisibility(cursor.getCount() > 0);
         }
-    }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -119,6 +95,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
+        mSearchScheduler = new SearchScheduler(getActivity(), mSchedulerCallback);
 
         if (savedInstanceState != null) {
             mShowResults = savedInstanceState.getBoolean(SAVE_KEY_SHOW_RESULTS);
@@ -142,13 +119,13 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     @Override
     public void onDestroy() {
+        mSearchScheduler.quit();
+
         mResultsListView = null;
         mResultsAdapter = null;
-        mUpdateSearchResultsTask = null;
 
         mSuggestionsListView = null;
         mSuggestionsAdapter = null;
-        mUpdateSuggestionsTask = null;
 
         mSearchView = null;
 
@@ -285,7 +262,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        updateSearchResults(true /* submitted */);
         saveQueryToDatabase();
 
         return false;
@@ -303,7 +280,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(false /* submitted */);
         }
 
         return true;
@@ -316,10 +293,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearSuggestions() {
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
-        }
+        mSearchScheduler.cancel();
         setSuggestionsCursor(null);
     }
 
@@ -334,10 +308,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
+        mSearchScheduler.cancel();
         setResultsCursor(null);
     }
 
@@ -366,35 +337,22 @@ public class SearchResultsSummary extends InstrumentedFragment {
         return filtered.toString();
     }
 
-    private void clearAllTasks() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
-        }
-    }
-
     private void updateSuggestions() {
-        clearAllTasks();
         if (mQuery == null) {
+            mSearchScheduler.cancel();
             setSuggestionsCursor(null);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mSearchScheduler.scheduleSuggestions(mQuery);
         }
     }
 
-    private void updateSearchResults() {
-        clearAllTasks();
+    private void updateSearchResults(boolean submitted) {
         if (TextUtils.isEmpty(mQuery)) {
+            mSearchScheduler.cancel();
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mSearchScheduler.scheduleSearch(mQuery, submitted);
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.settings.search.Index;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the search and suggestions queries of {@link SearchResultsSummary} on a single
+ * background thread.
+ *
+ * Each request starts a new generation: it replaces the request still waiting to run, cancels
+ * the query in flight through its {@link CancellationSignal}, and only the results of the
+ * latest generation are delivered. Search requests are debounced so that fast typing only runs
+ * the query for the last keystroke.
+ */
+class SearchScheduler {
+
+    private static final String LOG_TAG = "SearchScheduler";
+
+    // Delay before running a search query, reset by each keystroke
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+
+    private static final int MSG_SEARCH = 1;
+    private static final int MSG_SUGGESTIONS = 2;
+
+    public interface Callback {
+        void onSearchResults(Cursor cursor);
+        void onSuggestions(Cursor cursor);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final Object mLock = new Object();
+    private CancellationSignal mInFlightSignal;
+
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+    public SearchScheduler(Context context, Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+
+        mThread = new HandlerThread("SearchScheduler", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                runQuery(msg.what, msg.arg1, (String) msg.obj);
+            }
+        };
+    }
+
+    /**
+     * Schedules a search query, after the debounce delay unless it is submitted.
+     */
+    public void scheduleSearch(String query, boolean submitted) {
+        schedule(MSG_SEARCH, query, submitted ? 0 : SEARCH_DEBOUNCE_MS);
+    }
+
+    public void scheduleSuggestions(String query) {
+        schedule(MSG_SUGGESTIONS, query, 0);
+    }
+
+    /**
+     * Drops the pending request and cancels the query in flight, if any.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        dropPendingRequests();
+        cancelInFlightQuery();
+    }
+
+    public void quit() {
+        cancel();
+        mThread.quit();
+        Log.d(LOG_TAG, "Queries dropped: " + mDroppedCount.get() +
+                ", cancelled: " + mCancelledCount.get());
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    private void schedule(int what, String query, long delayMillis) {
+        final int generation = mGeneration.incrementAndGet();
+        dropPendingRequests();
+        cancelInFlightQuery();
+        mWorkerHandler.sendMessageDelayed(
+                mWorkerHandler.obtainMessage(what, generation, 0, query), delayMillis);
+    }
+
+    private void dropPendingRequests() {
+        if (mWorkerHandler.hasMessages(MSG_SEARCH)
+                || mWorkerHandler.hasMessages(MSG_SUGGESTIONS)) {
+            mDroppedCount.incrementAndGet();
+            mWorkerHandler.removeMessages(MSG_SEARCH);
+            mWorkerHandler.removeMessages(MSG_SUGGESTIONS);
+        }
+    }
+
+    private void cancelInFlightQuery() {
+        synchronized (mLock) {
+            if (mInFlightSignal != null) {
+                mInFlightSignal.cancel();
+                mInFlightSignal = null;
+            }
+        }
+    }
+
+    private void runQuery(final int what, final int generation, String query) {
+        final CancellationSignal signal = new CancellationSignal();
+        synchronized (mLock) {
+            if (generation != mGeneration.get()) {
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+            mInFlightSignal = signal;
+        }
+
+        Cursor cursor = null;
+        try {
+            final Index index = Index.getInstance(mContext);
+            cursor = (what == MSG_SEARCH)
+                    ? index.search(query, signal) : index.getSuggestions(query);
+        } catch (OperationCanceledException e) {
+            mCancelledCount.incrementAndGet();
+            return;
+        } finally {
+            synchronized (mLock) {
+                if (mInFlightSignal == signal) {
+                    mInFlightSignal = null;
+                }
+            }
+        }
+
+        final Cursor result = cursor;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    mDroppedCount.incrementAndGet();
+                    if (result != null) {
+                        result.close();
+                    }
+                    return;
+                }
+                if (what == MSG_SEARCH) {
+                    mCallback.onSearchResults(result);
+                } else {
+                    mCallback.onSuggestions(result);
+                }
+            }
+        });
+    }
+}
@@ -33,93 +33,115 @@ import android.util.Log;
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.LabelIconCache;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
  * and icon image.
  */
 public class BatteryEntry {
+    private static final boolean DEBUG = false;
+
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    // About a screenful of rows, which are loaded before the others
+    private static final int VISIBLE_ROWS = 12;
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    // Entries waiting for startRequestQueue(), in display order
+    private static final ArrayList<BatteryEntry> sPendingEntries = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
+    // Bumped by stopRequestQueue(), so that the loads queued before it are dropped
+    private static int sGeneration;
+    // Loads queued and not finished yet, see MSG_REPORT_FULLY_DRAWN
+    private static int sOutstandingLoads;
 
-        public void abort() {
-            mAbort = true;
+    public static void startRequestQueue() {
+        final ArrayList<BatteryEntry> entries;
+        final int generation;
+        synchronized (sPendingEntries) {
+            if (sHandler == null || sPendingEntries.isEmpty()) {
+                return;
+            }
+            entries = new ArrayList<BatteryEntry>(sPendingEntries);
+            sPendingEntries.clear();
+            generation = sGeneration;
+            sOutstandingLoads += entries.size();
         }
-
-        @Override
-        public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
+        final int count = entries.size();
+        for (int i = 0; i < count; i++) {
+            final BatteryEntry be = entries.get(i);
+            LabelIconCache.getInstance(be.context).execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sPendingEntries) {
+                        if (generation != sGeneration) {
+                            return;
+                        }
+                    }
+                    be.loadNameAndIcon();
+                    synchronized (sPendingEntries) {
+                        be.mLoadPending = false;
+                        if (generation == sGeneration && --sOutstandingLoads == 0
+                                && sHandler != null) {
                             sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
                         }
-                        mRequestQueue.clear();
-                        return;
                     }
-                    be = mRequestQueue.remove(0);
                 }
-                be.loadNameAndIcon();
-            }
+            }, i < VISIBLE_ROWS ? LabelIconCache.PRIORITY_VISIBLE
+                    : LabelIconCache.PRIORITY_OFFSCREEN);
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
-
-    public static void startRequestQueue() {
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
-                }
-            }
+    public static void stopRequestQueue() {
+        synchronized (sPendingEntries) {
+            sGeneration++;
+            sOutstandingLoads = 0;
+            sPendingEntries.clear();
+            sHandler = null;
         }
     }
 
-    public static void stopRequestQueue() {
-        synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+    /**
+     * Queues the entry again if its name and icon were dropped by {@link #stopRequestQueue()}
+     * before being loaded.
+     */
+    public void requeueIfNotLoaded(Handler handler) {
+        synchronized (sPendingEntries) {
+            if (mLoadPending && mQueuedGeneration != sGeneration) {
+                sHandler = handler;
+                mQueuedGeneration = sGeneration;
+                sPendingEntries.add(this);
             }
         }
     }
 
-    public static void clearUidCache() {
-        sUidCache.clear();
+    public static void clearUidCache(Context context) {
+        final LabelIconCache cache = LabelIconCache.getInstance(context);
+        if (DEBUG) cache.logMetrics();
+        cache.evictType(LabelIconCache.TYPE_BATTERY_ENTRY);
     }
 
     public final Context context;
-    public final BatterySipper sipper;
+    // Replaced on the main thread by setSipper() when a stats refresh brings a new sipper for
+    // the same entry, which may happen while loadNameAndIcon() runs
+    public BatterySipper sipper;
 
     public String name;
     public Drawable icon;
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
+    // Whether the name and icon are queued for loading, and the queue generation they were
+    // queued in, guarded by sPendingEntries
+    private boolean mLoadPending;
+    private int mQueuedGeneration;
+    // Packages of the uid resolved by loadNameAndIcon(), guarded by sPendingEntries
+    private String[] mLoadedPackages;
+
     static class UidToDetail {
         String name;
         String packageName;
@@ -206,9 +228,9 @@ public class BatteryEntry {
     }
 
     void getQuickNameIconForUid(final int uid) {
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
+        final UidToDetail utd = (UidToDetail) LabelIconCache.getInstance(context).get(
+                LabelIconCache.TYPE_BATTERY_ENTRY, uid);
+        if (utd != null) {
             defaultPackageName = utd.packageName;
             name = utd.name;
             icon = utd.icon;
@@ -228,17 +250,52 @@ public class BatteryEntry {
             icon = context.getDrawable(iconId);
         }
 
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
+        synchronized (sPendingEntries) {
+            if (sHandler != null) {
+                mLoadPending = true;
+                mQueuedGeneration = sGeneration;
+                sPendingEntries.add(this);
             }
         }
     }
 
+    /**
+     * Replaces the sipper of the entry, keeping the packages resolved for the previous one.
+     * Called on the main thread.
+     */
+    public void setSipper(BatterySipper newSipper) {
+        if (newSipper.packageWithHighestDrain == null) {
+            newSipper.packageWithHighestDrain = sipper.packageWithHighestDrain;
+        }
+        if (newSipper.mPackages == null) {
+            newSipper.mPackages = sipper.mPackages;
+        }
+        sipper = newSipper;
+        applyLoadedPackages();
+    }
+
+    /**
+     * Gives the packages resolved by loadNameAndIcon() to the current sipper, which may have
+     * been replaced while they were loading. Called on the main thread.
+     */
+    public void applyLoadedPackages() {
+        final String[] packages;
+        synchronized (sPendingEntries) {
+            packages = mLoadedPackages;
+        }
+        if (packages != null && sipper.mPackages == null) {
+            sipper.mPackages = packages;
+        }
+    }
+
     /**
      * Loads the app label and icon image and stores into the cache.
      */
     public void loadNameAndIcon() {
+        // The sipper may be replaced on the main thread meanwhile, so this only works on the
+        // one it started with
+        final BatterySipper sipper = this.sipper;
+
         // Bail out if the current sipper is not an App sipper.
         if (sipper.uidObj == null) {
             return;
@@ -247,6 +304,9 @@ public class BatteryEntry {
         PackageManager pm = context.getPackageManager();
         final int uid = sipper.uidObj.getUid();
         sipper.mPackages = pm.getPackagesForUid(uid);
+        synchronized (sPendingEntries) {
+            mLoadedPackages = sipper.mPackages;
+        }
         if (sipper.mPackages != null) {
             String[] packageLabels = new String[sipper.mPackages.length];
             System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
@@ -323,7 +383,7 @@ public class BatteryEntry {
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
+        LabelIconCache.getInstance(context).put(LabelIconCache.TYPE_BATTERY_ENTRY, uid, utd);
         if (sHandler != null) {
             sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
         }
@@ -45,8 +45,10 @@ import android.view.View;
 import libcore.icu.LocaleData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.WeakHashMap;
 
 public class BatteryHistoryChart extends View {
     static final boolean DEBUG = false;
@@ -115,6 +117,122 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Compact copy of the battery history, decoded once per {@link BatteryStats}
+     * so that the chart can be laid out again at any size without iterating the
+     * history of the stats.
+     */
+    static class HistoryDigest {
+        int mCount;
+        byte[] mCmds = new byte[0];
+        long[] mTimes = new long[0];
+        byte[] mLevels = new byte[0];
+        int[] mStates = new int[0];
+        int[] mStates2 = new int[0];
+
+        // Wall clock times of the CMD_CURRENT_TIME and CMD_RESET records, in order
+        int mNumCurrentTimes;
+        long[] mCurrentTimes = new long[0];
+
+        int mNumHist;
+        long mHistStart;
+        long mHistDataEnd;
+        long mStartWallTime;
+        long mLastWallTime;
+        long mLastRealtime;
+        int mAggrStates;
+        int mAggrStates2;
+
+        void build(BatteryStats stats) {
+            mCount = 0;
+            mNumCurrentTimes = 0;
+            mHistStart = 0;
+            mHistDataEnd = 0;
+            mStartWallTime = 0;
+            mAggrStates = 0;
+            mAggrStates2 = 0;
+            int pos = 0;
+            int lastInteresting = 0;
+            long lastWallTime = 0;
+            long lastRealtime = 0;
+            boolean first = true;
+            if (stats.startIteratingHistoryLocked()) {
+                final HistoryItem rec = new HistoryItem();
+                while (stats.getNextHistoryLocked(rec)) {
+                    pos++;
+                    if (first) {
+                        first = false;
+                        mHistStart = rec.time;
+                    }
+                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                            || rec.cmd == HistoryItem.CMD_RESET) {
+                        // If there is a ridiculously large jump in time, then we won't be
+                        // able to create a good chart with that data, so just ignore the
+                        // times we got before and pretend like our data extends back from
+                        // the time we have now.
+                        // Also, if we are getting a time change and we are less than 5 minutes
+                        // since the start of the history real time, then also use this new
+                        // time to compute the base time, since whatever time we had before is
+                        // pretty much just noise.
+                        if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                                || rec.time < (mHistStart+(5*60*1000L))) {
+                            mStartWallTime = 0;
+                        }
+                        lastWallTime = rec.currentTime;
+                        lastRealtime = rec.time;
+                        if (mStartWallTime == 0) {
+                            mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
+                        }
+                        addCurrentTime(rec.currentTime);
+                    }
+                    if (rec.isDeltaData()) {
+                        lastInteresting = pos;
+                        mHistDataEnd = rec.time;
+                        mAggrStates |= rec.states;
+                        mAggrStates2 |= rec.states2;
+                    }
+                    add(rec);
+                }
+                stats.finishIteratingHistoryLocked();
+            }
+            mLastWallTime = lastWallTime;
+            mLastRealtime = lastRealtime;
+            // Records after the last delta are not drawn
+            mNumHist = lastInteresting;
+            mCount = lastInteresting;
+        }
+
+        private void add(HistoryItem rec) {
+            if (mCount == mCmds.length) {
+                final int capacity = Math.max(256, mCount * 2);
+                mCmds = Arrays.copyOf(mCmds, capacity);
+                mTimes = Arrays.copyOf(mTimes, capacity);
+                mLevels = Arrays.copyOf(mLevels, capacity);
+                mStates = Arrays.copyOf(mStates, capacity);
+                mStates2 = Arrays.copyOf(mStates2, capacity);
+            }
+            mCmds[mCount] = rec.cmd;
+            mTimes[mCount] = rec.time;
+            mLevels[mCount] = rec.batteryLevel;
+            mStates[mCount] = rec.states;
+            mStates2[mCount] = rec.states2;
+            mCount++;
+        }
+
+        private void addCurrentTime(long currentTime) {
+            if (mNumCurrentTimes == mCurrentTimes.length) {
+                mCurrentTimes = Arrays.copyOf(mCurrentTimes, Math.max(16, mNumCurrentTimes * 2));
+            }
+            mCurrentTimes[mNumCurrentTimes++] = currentTime;
+        }
+    }
+
+    // Digest of the last stats set on any chart; the stats are kept across configuration
+    // changes, so a recreated chart can skip decoding the same history again. The digest is
+    // dropped with the stats it was decoded from.
+    private static final WeakHashMap<BatteryStats, HistoryDigest> sDigests =
+            new WeakHashMap<BatteryStats, HistoryDigest>();
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -156,6 +274,7 @@ public class BatteryHistoryChart extends View {
     final Path mDateLinePath = new Path();
     
     BatteryStats mStats;
+    HistoryDigest mHistoryDigest;
     Intent mBatteryBroadcast;
     long mStatsPeriod;
     int mBatteryLevel;
@@ -558,64 +677,21 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
+        mHistoryDigest = getHistoryDigest(stats);
+        mHistStart = mHistoryDigest.mHistStart;
+        mHistDataEnd = mHistoryDigest.mHistDataEnd;
+        mStartWallTime = mHistoryDigest.mStartWallTime;
+        final long lastWallTime = mHistoryDigest.mLastWallTime;
+        final long lastRealtime = mHistoryDigest.mLastRealtime;
+        final int aggrStates = mHistoryDigest.mAggrStates;
+        final int aggrStates2 = mHistoryDigest.mAggrStates2;
+
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
         mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
+        mNumHist = mHistoryDigest.mNumHist;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveFlashlight = (aggrStates2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
         mHaveCamera = (aggrStates2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
@@ -629,6 +705,21 @@ public class BatteryHistoryChart extends View {
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
     }
 
+    private static HistoryDigest getHistoryDigest(BatteryStats stats) {
+        HistoryDigest digest = sDigests.get(stats);
+        if (digest == null) {
+            final long start = SystemClock.elapsedRealtime();
+            digest = new HistoryDigest();
+            digest.build(stats);
+            // Only the digest of the last stats is worth keeping
+            sDigests.clear();
+            sDigests.put(stats, digest);
+            if (DEBUG) Log.d(TAG, "Built history digest of " + digest.mCount + " records in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return digest;
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         mMaxPercentLabelStringWidth = (int)mTextPaint.measureText(mMaxPercentLabelString);
@@ -815,13 +906,18 @@ public class BatteryHistoryChart extends View {
         boolean lastFlashlightOn = false, lastCameraOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        final HistoryDigest digest = mHistoryDigest;
         final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        if (mEndDataWallTime > mStartWallTime) {
+            int currentTimeIndex = 0;
+            while (i < N) {
+                final byte cmd = digest.mCmds[i];
+                final long time = digest.mTimes[i];
+                final int states = digest.mStates[i];
+                final int states2 = digest.mStates2[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -836,14 +932,14 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((digest.mLevels[i]-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = digest.mLevels[i];
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -874,7 +970,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -885,7 +981,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -896,7 +992,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -907,7 +1003,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean flashlightOn =
-                            (rec.states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
                         if (flashlightOn != lastFlashlightOn) {
                             if (flashlightOn) {
                                 mFlashlightOnPath.moveTo(x, h-mFlashlightOnOffset);
@@ -918,7 +1014,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cameraOn =
-                            (rec.states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
                         if (cameraOn != lastCameraOn) {
                             if (cameraOn) {
                                 mCameraOnPath.moveTo(x, h-mCameraOnOffset);
@@ -929,7 +1025,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -950,7 +1046,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -965,7 +1061,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -977,14 +1073,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -994,18 +1090,19 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        final long currentTime = digest.mCurrentTimes[currentTimeIndex++];
+                        if (currentTime >= mStartWallTime) {
+                            curWalltime = currentTime;
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -1022,7 +1119,6 @@ public class BatteryHistoryChart extends View {
                 
                 i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -17,6 +17,10 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Activity;
+import android.app.LoaderManager.LoaderCallbacks;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.Loader;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
 import android.os.Build;
@@ -24,11 +28,15 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
 import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.Menu;
@@ -38,6 +46,7 @@ import android.view.MenuItem;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatterySipper.DrainType;
+import com.android.internal.os.BatteryStatsHelper;
 import com.android.internal.os.PowerProfile;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
@@ -70,8 +79,11 @@ public class PowerUsageSummary extends PowerUsageBase {
     private static final int MENU_HIGH_POWER_APPS = Menu.FIRST + 3;
     private static final int MENU_HELP = Menu.FIRST + 4;
 
+    private static final int LOADER_STATS = 1;
+
     private BatteryHistoryPreference mHistPref;
     private PreferenceGroup mAppListGroup;
+    private Preference mNotAvailable;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
@@ -111,7 +123,7 @@ public class PowerUsageSummary extends PowerUsageBase {
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            BatteryEntry.clearUidCache();
+            BatteryEntry.clearUidCache(getActivity());
         }
     }
 
@@ -179,6 +191,7 @@ public class PowerUsageSummary extends PowerUsageBase {
         Preference notAvailable = new Preference(getActivity());
         notAvailable.setTitle(R.string.power_usage_not_available);
         mAppListGroup.addPreference(notAvailable);
+        mNotAvailable = notAvailable;
     }
 
     private static boolean isSharedGid(int uid) {
@@ -279,34 +292,122 @@ public class PowerUsageSummary extends PowerUsageBase {
         return results;
     }
 
+    /**
+     * Refreshes the stats in the background, see {@link StatsLoader}. The list is updated
+     * when the new snapshot is delivered.
+     */
+    @Override
     protected void refreshStats() {
-        super.refreshStats();
+        final Bundle args = new Bundle();
+        args.putInt(StatsLoader.KEY_STATS_TYPE, mStatsType);
+        getLoaderManager().restartLoader(LOADER_STATS, args, mStatsCallbacks);
+    }
+
+    /**
+     * Updates the list from the given snapshot, only touching the preferences of the entries
+     * that were added, removed or changed.
+     */
+    private void applySnapshot(Snapshot snapshot) {
+        final long start = SystemClock.elapsedRealtime();
+        mStatsHelper = snapshot.helper;
         updatePreference(mHistPref);
-        mAppListGroup.removeAll();
         mAppListGroup.setOrderingAsAdded(false);
-        boolean addedSome = false;
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
 
         TypedValue value = new TypedValue();
         getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
         int colorControl = getContext().getColor(value.resourceId);
 
+        final ArrayMap<String, PowerGaugePreference> stalePrefs = new ArrayMap<>();
+        for (int i = mAppListGroup.getPreferenceCount() - 1; i >= 0; i--) {
+            final Preference pref = mAppListGroup.getPreference(i);
+            if (pref instanceof PowerGaugePreference) {
+                stalePrefs.put(pref.getKey(), (PowerGaugePreference) pref);
+            }
+        }
+
+        int added = 0;
+        int updated = 0;
+        final int numRows = snapshot.rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final Row row = snapshot.rows.get(i);
+            final BatterySipper sipper = row.sipper;
+            PowerGaugePreference pref = stalePrefs.remove(row.key);
+            if (pref == null) {
+                final UserHandle userHandle =
+                        new UserHandle(UserHandle.getUserId(sipper.getUid()));
+                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
+                        userHandle);
+                final CharSequence contentDescription = mUm.getBadgedLabelForUser(
+                        entry.getLabel(), userHandle);
+                pref = new PowerGaugePreference(getActivity(), badgedIcon, contentDescription,
+                        entry);
+                pref.setTitle(entry.getLabel());
+                pref.setKey(row.key);
+                if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
+                        && sipper.drainType != DrainType.USER) {
+                    pref.setTint(colorControl);
+                }
+                pref.setOrder(row.order);
+                pref.setPercent(row.percentOfMax, row.percentOfTotal);
+                mAppListGroup.addPreference(pref);
+                added++;
+            } else {
+                // Same entry: keep its label and icon, and point it to the new sipper
+                pref.getInfo().setSipper(sipper);
+                pref.getInfo().requeueIfNotLoaded(mHandler);
+                pref.setOrder(row.order);
+                pref.setPercent(row.percentOfMax, row.percentOfTotal);
+                updated++;
+            }
+        }
+
+        final int removed = stalePrefs.size();
+        for (int i = 0; i < removed; i++) {
+            mAppListGroup.removePreference(stalePrefs.valueAt(i));
+        }
+
+        if (numRows == 0) {
+            if (mNotAvailable == null) {
+                addNotAvailableMessage();
+            }
+        } else if (mNotAvailable != null) {
+            mAppListGroup.removePreference(mNotAvailable);
+            mNotAvailable = null;
+        }
+
+        BatteryEntry.startRequestQueue();
+
+        if (DEBUG) {
+            Log.d(TAG, "Applied snapshot in " + (SystemClock.elapsedRealtime() - start)
+                    + "ms: added=" + added + " updated=" + updated + " removed=" + removed);
+        }
+    }
+
+    /**
+     * Computes the rows to list from refreshed stats. This does not touch any UI and can run
+     * off the main thread.
+     */
+    static Snapshot buildSnapshot(BatteryStatsHelper helper, int statsType) {
+        final ArrayList<Row> rows = new ArrayList<>();
+
+        final PowerProfile powerProfile = helper.getPowerProfile();
+        final BatteryStats stats = helper.getStats();
+        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+
         if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP || USE_FAKE_DATA) {
             final List<BatterySipper> usageList = getCoalescedUsageList(
-                    USE_FAKE_DATA ? getFakeStats() : mStatsHelper.getUsageList());
+                    USE_FAKE_DATA ? getFakeStats() : helper.getUsageList());
 
             final int dischargeAmount = USE_FAKE_DATA ? 5000
-                    : stats != null ? stats.getDischargeAmount(mStatsType) : 0;
+                    : stats != null ? stats.getDischargeAmount(statsType) : 0;
             final int numSippers = usageList.size();
             for (int i = 0; i < numSippers; i++) {
                 final BatterySipper sipper = usageList.get(i);
                 if ((sipper.totalPowerMah * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
                     continue;
                 }
-                double totalPower = USE_FAKE_DATA ? 4000 : mStatsHelper.getTotalPower();
+                double totalPower = USE_FAKE_DATA ? 4000 : helper.getTotalPower();
                 final double percentOfTotal =
                         ((sipper.totalPowerMah / totalPower) * dischargeAmount);
                 if (((int) (percentOfTotal + .5)) < 1) {
@@ -315,7 +416,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
                     // Don't show over-counted unless it is at least 2/3 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                    if (sipper.totalPowerMah < ((helper.getMaxRealPower()*2)/3)) {
                         continue;
                     }
                     if (percentOfTotal < 10) {
@@ -328,7 +429,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
                     // Don't show over-counted unless it is at least 1/2 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < (mStatsHelper.getMaxRealPower()/2)) {
+                    if (sipper.totalPowerMah < (helper.getMaxRealPower()/2)) {
                         continue;
                     }
                     if (percentOfTotal < 5) {
@@ -338,40 +439,32 @@ public class PowerUsageSummary extends PowerUsageBase {
                         continue;
                     }
                 }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
 
                 final double percentOfMax = (sipper.totalPowerMah * 100)
-                        / mStatsHelper.getMaxPower();
+                        / helper.getMaxPower();
                 sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
-                         && sipper.drainType != DrainType.USER) {
-                    pref.setTint(colorControl);
-                }
-                addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
+                rows.add(new Row(getRowKey(sipper), sipper, i + 1, percentOfMax,
+                        percentOfTotal));
+                if (rows.size() > (MAX_ITEMS_TO_LIST + 1)) {
                     break;
                 }
             }
         }
-        if (!addedSome) {
-            addNotAvailableMessage();
-        }
+        return new Snapshot(helper, Collections.unmodifiableList(rows));
+    }
 
-        BatteryEntry.startRequestQueue();
+    /**
+     * Returns the key identifying the entry of the given sipper from one refresh to the next.
+     * App entries are keyed by uid, as {@link BatteryEntry#MSG_UPDATE_NAME_ICON} expects.
+     */
+    private static String getRowKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        } else if (sipper.drainType == DrainType.USER) {
+            return sipper.drainType + ":" + sipper.userId;
+        } else {
+            return sipper.drainType.toString();
+        }
     }
 
     private static List<BatterySipper> getFakeStats() {
@@ -407,6 +500,109 @@ public class PowerUsageSummary extends PowerUsageBase {
         return stats;
     }
 
+    private final LoaderCallbacks<Snapshot> mStatsCallbacks = new LoaderCallbacks<Snapshot>() {
+        @Override
+        public Loader<Snapshot> onCreateLoader(int id, Bundle args) {
+            return new StatsLoader(getActivity(), args.getInt(StatsLoader.KEY_STATS_TYPE));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<Snapshot> loader, Snapshot data) {
+            applySnapshot(data);
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Snapshot> loader) {
+            // The preferences stay as they are until the next snapshot
+        }
+    };
+
+    /**
+     * Immutable result of a stats refresh: the refreshed helper, which is not modified by the
+     * loader once delivered, and the rows to list in order.
+     */
+    static final class Snapshot {
+        final BatteryStatsHelper helper;
+        final List<Row> rows;
+
+        Snapshot(BatteryStatsHelper helper, List<Row> rows) {
+            this.helper = helper;
+            this.rows = rows;
+        }
+    }
+
+    static final class Row {
+        final String key;
+        final BatterySipper sipper;
+        final int order;
+        final double percentOfMax;
+        final double percentOfTotal;
+
+        Row(String key, BatterySipper sipper, int order, double percentOfMax,
+                double percentOfTotal) {
+            this.key = key;
+            this.sipper = sipper;
+            this.order = order;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+        }
+    }
+
+    /**
+     * Refreshes the battery stats into a new {@link BatteryStatsHelper} and builds the rows to
+     * list, off the main thread.
+     */
+    private static class StatsLoader extends AsyncTaskLoader<Snapshot> {
+        static final String KEY_STATS_TYPE = "stats_type";
+
+        private final int mStatsType;
+        private final UserManager mUm;
+        private Snapshot mSnapshot;
+
+        StatsLoader(Context context, int statsType) {
+            super(context);
+            mStatsType = statsType;
+            mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        }
+
+        @Override
+        public Snapshot loadInBackground() {
+            final BatteryStatsHelper helper = new BatteryStatsHelper(getContext(), true);
+            helper.create((Bundle) null);
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
+            return buildSnapshot(helper, mStatsType);
+        }
+
+        @Override
+        public void deliverResult(Snapshot data) {
+            mSnapshot = data;
+            if (isStarted()) {
+                super.deliverResult(data);
+            }
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if (mSnapshot != null) {
+                deliverResult(mSnapshot);
+            } else {
+                forceLoad();
+            }
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+            onStopLoading();
+            mSnapshot = null;
+        }
+    }
+
     Handler mHandler = new Handler() {
 
         @Override
@@ -414,6 +610,7 @@ public class PowerUsageSummary extends PowerUsageBase {
             switch (msg.what) {
                 case BatteryEntry.MSG_UPDATE_NAME_ICON:
                     BatteryEntry entry = (BatteryEntry) msg.obj;
+                    entry.applyLoadedPackages();
                     PowerGaugePreference pgp =
                             (PowerGaugePreference) findPreference(
                                     Integer.toString(entry.sipper.uidObj.getUid()));
@@ -26,13 +26,23 @@ import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -41,7 +51,25 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    // Network sets collected for each uid, see collectHistoriesForUids()
+    private static final int[] COLLECTED_SETS = new int[] { SET_DEFAULT, SET_FOREGROUND };
+
+    // Fetches the per-uid histories of aggregate items in parallel, without keeping threads
+    // around when idle
+    private static final ThreadPoolExecutor COLLECT_EXECUTOR = new ThreadPoolExecutor(4, 4,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ChartDataLoader:Collect");
+                }
+            });
+
+    static {
+        COLLECT_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -57,8 +85,18 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, null, args);
+    }
+
+    /**
+     * Creates a loader reading the network history through the given cache, the returned
+     * {@link ChartData#network} must not be modified.
+     */
+    public ChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkStatsCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -86,20 +124,20 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = (mCache != null) ? mCache.getHistoryForNetwork(template, fields)
+                : mSession.getHistoryForNetwork(template, fields);
 
         if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
+            if (size > 1) {
+                collectHistoriesForUids(template, app, data);
+            } else if (size > 0) {
+                final int uid = app.uids.keyAt(0);
                 data.detailDefault = collectHistoryForUid(
                         template, uid, SET_DEFAULT, data.detailDefault);
                 data.detailForeground = collectHistoryForUid(
                         template, uid, SET_FOREGROUND, data.detailForeground);
-            }
-
-            if (size > 0) {
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -134,7 +172,136 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             throws RemoteException {
         final NetworkStatsHistory history = mSession.getHistoryForUid(
                 template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+        return mergeHistory(history, existing);
+    }
+
+    /**
+     * Collect the default and foreground {@link NetworkStatsHistory} of all the
+     * uids of an aggregate item in parallel, and merge them into the detail
+     * histories of the given {@link ChartData}.
+     */
+    private void collectHistoriesForUids(final NetworkTemplate template, AppItem app,
+            ChartData data) throws RemoteException {
+        final int size = app.uids.size();
+        final int setCount = COLLECTED_SETS.length;
+        @SuppressWarnings("unchecked")
+        final Future<NetworkStatsHistory>[] futures = new Future[size * setCount];
+        for (int i = 0; i < size; i++) {
+            final int uid = app.uids.keyAt(i);
+            for (int j = 0; j < setCount; j++) {
+                final int set = COLLECTED_SETS[j];
+                futures[i * setCount + j] = COLLECT_EXECUTOR.submit(
+                        new Callable<NetworkStatsHistory>() {
+                            @Override
+                            public NetworkStatsHistory call() throws RemoteException {
+                                return mSession.getHistoryForUid(template, uid, set, TAG_NONE,
+                                        FIELD_RX_BYTES | FIELD_TX_BYTES);
+                            }
+                        });
+            }
+        }
+
+        final NetworkStatsHistory[] histories = new NetworkStatsHistory[futures.length];
+        try {
+            for (int i = 0; i < futures.length; i++) {
+                histories[i] = futures[i].get();
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
 
+        if (!mergeHistories(histories, data)) {
+            // Buckets that do not line up cannot be summed by index, merge them one by one
+            data.detailDefault = null;
+            data.detailForeground = null;
+            for (int i = 0; i < histories.length; i += setCount) {
+                data.detailDefault = mergeHistory(histories[i], data.detailDefault);
+                data.detailForeground = mergeHistory(histories[i + 1], data.detailForeground);
+            }
+            data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
+            data.detail.recordEntireHistory(data.detailDefault);
+            data.detail.recordEntireHistory(data.detailForeground);
+        }
+    }
+
+    /**
+     * Sum the default and foreground histories, interleaved in the given
+     * array, into preallocated bucket arrays and build the detail histories
+     * from them in a single pass.
+     *
+     * @return false if the histories do not share aligned buckets.
+     */
+    private static boolean mergeHistories(NetworkStatsHistory[] histories, ChartData data) {
+        final long bucketDuration = histories[0].getBucketDuration();
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (NetworkStatsHistory history : histories) {
+            if (history.getBucketDuration() != bucketDuration) {
+                return false;
+            }
+            if (history.size() > 0) {
+                start = Math.min(start, history.getStart());
+                end = Math.max(end, history.getEnd());
+            }
+        }
+
+        final int count = (start < end) ? (int) ((end - start) / bucketDuration) : 0;
+        final long[] defaultRx = new long[count];
+        final long[] defaultTx = new long[count];
+        final long[] foregroundRx = new long[count];
+        final long[] foregroundTx = new long[count];
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < histories.length; i++) {
+            final NetworkStatsHistory history = histories[i];
+            final boolean foreground = (i % COLLECTED_SETS.length) != 0;
+            final long[] rx = foreground ? foregroundRx : defaultRx;
+            final long[] tx = foreground ? foregroundTx : defaultTx;
+            final int size = history.size();
+            for (int j = 0; j < size; j++) {
+                entry = history.getValues(j, entry);
+                final long offset = entry.bucketStart - start;
+                if (offset % bucketDuration != 0) {
+                    return false;
+                }
+                final int index = (int) (offset / bucketDuration);
+                rx[index] += entry.rxBytes;
+                tx[index] += entry.txBytes;
+            }
+        }
+
+        final int fields = FIELD_RX_BYTES | FIELD_TX_BYTES;
+        data.detailDefault = new NetworkStatsHistory(bucketDuration, count, fields);
+        data.detailForeground = new NetworkStatsHistory(bucketDuration, count, fields);
+        data.detail = new NetworkStatsHistory(bucketDuration, count);
+
+        final NetworkStats.Entry bucket = new NetworkStats.Entry();
+        for (int i = 0; i < count; i++) {
+            final long bucketStart = start + i * bucketDuration;
+            final long bucketEnd = bucketStart + bucketDuration;
+            bucket.rxBytes = defaultRx[i];
+            bucket.txBytes = defaultTx[i];
+            data.detailDefault.recordData(bucketStart, bucketEnd, bucket);
+            bucket.rxBytes = foregroundRx[i];
+            bucket.txBytes = foregroundTx[i];
+            data.detailForeground.recordData(bucketStart, bucketEnd, bucket);
+            bucket.rxBytes = defaultRx[i] + foregroundRx[i];
+            bucket.txBytes = defaultTx[i] + foregroundTx[i];
+            data.detail.recordData(bucketStart, bucketEnd, bucket);
+        }
+        return true;
+    }
+
+    private static NetworkStatsHistory mergeHistory(NetworkStatsHistory history,
+            NetworkStatsHistory existing) {
         if (existing != null) {
             existing.recordEntireHistory(history);
             return existing;
@@ -142,4 +309,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             return history;
         }
     }
+
+    private static void cancelAll(Future<?>[] futures) {
+        for (Future<?> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Objects;
+
+/**
+ * Bounded cache of the summaries and network histories read from an
+ * {@link INetworkStatsSession}, keyed by template, bounds and fields.
+ *
+ * The stats only change when the stats service polls, so the whole cache is dropped on each
+ * {@link #ACTION_NETWORK_STATS_UPDATED} broadcast. Values are shared between callers and must
+ * not be modified.
+ */
+public class NetworkStatsCache {
+
+    private static final String TAG = "NetworkStatsCache";
+
+    /** Sent by the stats service after each poll, see NetworkStatsService. */
+    public static final String ACTION_NETWORK_STATS_UPDATED =
+            "com.android.server.action.NETWORK_STATS_UPDATED";
+
+    private static final int MAX_ENTRIES = 12;
+
+    private static final int TYPE_SUMMARY_FOR_ALL_UID = 1;
+    private static final int TYPE_HISTORY_FOR_NETWORK = 2;
+
+    private final INetworkStatsSession mSession;
+    private final LruCache<Key, Object> mCache = new LruCache<Key, Object>(MAX_ENTRIES);
+
+    // Bumped by each invalidation, so that loads started before it are not cached
+    private int mGeneration;
+    // Keys being prefetched, to avoid prefetching the same summary twice
+    private final HashSet<Key> mPrefetching = new HashSet<Key>();
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public NetworkStatsCache(INetworkStatsSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Starts dropping the cache on each stats poll.
+     */
+    public void register(Context context) {
+        context.registerReceiver(mReceiver, new IntentFilter(ACTION_NETWORK_STATS_UPDATED));
+    }
+
+    public void unregister(Context context) {
+        context.unregisterReceiver(mReceiver);
+        synchronized (this) {
+            Log.d(TAG, "Cache hits: " + mHitCount + ", misses: " + mMissCount);
+        }
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mPrefetching.clear();
+        mCache.evictAll();
+    }
+
+    public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end)
+            throws RemoteException {
+        final Key key = new Key(TYPE_SUMMARY_FOR_ALL_UID, template, start, end, 0);
+        final int generation;
+        NetworkStats stats;
+        synchronized (this) {
+            generation = mGeneration;
+            stats = (NetworkStats) lookup(key);
+        }
+        if (stats == null) {
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
+            finishLoad(key, stats, generation);
+        }
+        return stats;
+    }
+
+    public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields)
+            throws RemoteException {
+        final Key key = new Key(TYPE_HISTORY_FOR_NETWORK, template, 0, 0, fields);
+        final int generation;
+        NetworkStatsHistory history;
+        synchronized (this) {
+            generation = mGeneration;
+            history = (NetworkStatsHistory) lookup(key);
+        }
+        if (history == null) {
+            history = mSession.getHistoryForNetwork(template, fields);
+            finishLoad(key, history, generation);
+        }
+        return history;
+    }
+
+    /**
+     * Loads the summary of the given cycle in the background, unless it is already cached.
+     */
+    public void prefetchSummaryForAllUid(final NetworkTemplate template, final long start,
+            final long end) {
+        final Key key = new Key(TYPE_SUMMARY_FOR_ALL_UID, template, start, end, 0);
+        synchronized (this) {
+            if (mCache.get(key) != null || !mPrefetching.add(key)) {
+                return;
+            }
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int generation;
+                    synchronized (NetworkStatsCache.this) {
+                        if (!mPrefetching.contains(key)) {
+                            // Invalidated before the prefetch could run
+                            return;
+                        }
+                        generation = mGeneration;
+                    }
+                    finishLoad(key, mSession.getSummaryForAllUid(template, start, end, false),
+                            generation);
+                } catch (RemoteException | RuntimeException e) {
+                    // The session may have been closed meanwhile, the summary will be loaded
+                    // when needed instead.
+                    Log.w(TAG, "Cannot prefetch summary", e);
+                } finally {
+                    synchronized (NetworkStatsCache.this) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private Object lookup(Key key) {
+        final Object value = mCache.get(key);
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    private synchronized void finishLoad(Key key, Object value, int generation) {
+        if (value != null && generation == mGeneration) {
+            mCache.put(key, value);
+        }
+    }
+
+    private static class Key {
+        final int type;
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+        final int fields;
+
+        Key(int type, NetworkTemplate template, long start, long end, int fields) {
+            this.type = type;
+            this.template = template;
+            this.start = start;
+            this.end = end;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                final Key another = (Key) o;
+                return type == another.type && start == another.start && end == another.end
+                        && fields == another.fields
+                        && Objects.equals(template, another.template);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, template, start, end, fields);
+        }
+    }
+}
@@ -30,6 +30,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -43,6 +44,17 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
         super(context);
         mSession = session;
+        mCache = null;
+        mArgs = args;
+    }
+
+    /**
+     * Creates a loader reading through the given cache, the returned stats must not be modified.
+     */
+    public SummaryForAllUidLoader(Context context, NetworkStatsCache cache, Bundle args) {
+        super(context);
+        mSession = null;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -59,6 +71,9 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long end = mArgs.getLong(KEY_END);
 
         try {
+            if (mCache != null) {
+                return mCache.getSummaryForAllUid(template, start, end);
+            }
             return mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
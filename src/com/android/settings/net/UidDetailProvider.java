@@ -33,10 +33,12 @@ import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.LabelIconCache;
+
+import java.util.concurrent.Executor;
 
 /**
  * Return details about a specific UID, handling special cases like
@@ -45,7 +47,7 @@ import com.android.settings.Utils;
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LabelIconCache mCache;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,24 +65,26 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mCache = LabelIconCache.getInstance(mContext);
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
-        }
+        mCache.evictType(LabelIconCache.TYPE_UID_DETAIL);
+    }
+
+    /**
+     * Returns an executor to build details in the background, ahead of the work queued for
+     * rows that are not visible.
+     */
+    public Executor getExecutor() {
+        return mCache.getExecutor(LabelIconCache.PRIORITY_VISIBLE);
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
+        UidDetail detail = (UidDetail) mCache.get(LabelIconCache.TYPE_UID_DETAIL, uid);
 
         if (detail != null) {
             return detail;
@@ -90,9 +94,7 @@ public class UidDetailProvider {
 
         detail = buildUidDetail(uid);
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
-        }
+        mCache.put(LabelIconCache.TYPE_UID_DETAIL, uid, detail);
 
         return detail;
     }
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.UID_ALL;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseIntArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregates the data usage of a {@link NetworkStats} summary into the items shown by the
+ * data usage list, sorted by category and then by decreasing usage.
+ *
+ * The usage is summed into primitive arrays indexed by item, and the category of each user is
+ * only looked up once per aggregation. {@link AppItem}s are only created when requested, so
+ * binding the stats only costs one pass over the entries. The arrays are kept from one
+ * aggregation to the next.
+ */
+public class UidUsageAggregator {
+
+    // What a user is to the current user, see getUserState()
+    private static final int USER_CURRENT = 1;
+    private static final int USER_PROFILE = 2;
+    private static final int USER_OTHER = 3;
+    private static final int USER_REMOVED = 4;
+
+    private static final int NO_NODE = -1;
+
+    // Gaps of the shell sort of the items (Ciura's sequence)
+    private static final int[] SORT_GAPS = new int[] { 701, 301, 132, 57, 23, 10, 4, 1 };
+
+    // User states by user id, and item indexes by collapse key
+    private final SparseIntArray mUserStates = new SparseIntArray();
+    private final SparseIntArray mItemIndexes = new SparseIntArray();
+
+    // Columns of the items, by item index
+    private int mItemCount;
+    private int[] mKeys = new int[16];
+    private int[] mCategories = new int[16];
+    private long[] mTotals = new long[16];
+    private boolean[] mRestricted = new boolean[16];
+    private int[] mLastUids = new int[16];
+    private int[] mFirstNodes = new int[16];
+    private AppItem[] mAppItems = new AppItem[16];
+
+    // Linked lists of the uids of each item, by node index
+    private int mNodeCount;
+    private int[] mNodeUids = new int[64];
+    private int[] mNodeNexts = new int[64];
+
+    // Item indexes in display order
+    private int[] mOrder = new int[16];
+
+    private boolean mHasTitle;
+    private int mTitlePosition;
+    private AppItem mTitle;
+    private long mLargest;
+
+    private UserManager mUm;
+    private List<UserHandle> mProfiles;
+    private int mCurrentUserId;
+
+    /**
+     * Aggregates the given stats, or clears the items if they are null.
+     */
+    public void aggregate(NetworkStats stats, int[] restrictedUids, UserManager um,
+            List<UserHandle> profiles, int currentUserId) {
+        clear();
+        mUm = um;
+        mProfiles = profiles;
+        mCurrentUserId = currentUserId;
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            if (UserHandle.isApp(uid)) {
+                final int userId = UserHandle.getUserId(uid);
+                switch (getUserState(userId)) {
+                    case USER_PROFILE:
+                        // Add to a managed user item.
+                        accumulate(UidDetailProvider.buildKeyForUser(userId),
+                                AppItem.CATEGORY_USER, uid, bytes);
+                        // Then to the app item.
+                    case USER_CURRENT:
+                        collapseKey = uid;
+                        category = AppItem.CATEGORY_APP;
+                        break;
+                    case USER_REMOVED:
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                        break;
+                    default:
+                        // Add to other user item.
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                        break;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(collapseKey, category, uid, bytes);
+        }
+
+        final int restrictedUidsMax = restrictedUids != null ? restrictedUids.length : 0;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            final int userState = getUserState(UserHandle.getUserId(uid));
+            if (userState != USER_CURRENT && userState != USER_PROFILE) {
+                continue;
+            }
+
+            int index = mItemIndexes.get(uid, -1);
+            if (index < 0) {
+                index = addItem(uid, AppItem.CATEGORY_USER);
+                mTotals[index] = -1;
+            }
+            mRestricted[index] = true;
+        }
+
+        mHasTitle = mItemCount > 0;
+        sortItems();
+
+        mUm = null;
+        mProfiles = null;
+    }
+
+    public void clear() {
+        mUserStates.clear();
+        mItemIndexes.clear();
+        Arrays.fill(mAppItems, 0, mItemCount, null);
+        mItemCount = 0;
+        mNodeCount = 0;
+        mHasTitle = false;
+        mLargest = 0;
+    }
+
+    /**
+     * Returns the number of items, including the title of the app items.
+     */
+    public int getCount() {
+        return mHasTitle ? mItemCount + 1 : mItemCount;
+    }
+
+    /**
+     * Returns the largest usage of all the items.
+     */
+    public long getLargest() {
+        return mLargest;
+    }
+
+    public int getKey(int position) {
+        final int index = getItemIndex(position);
+        return index >= 0 ? mKeys[index] : 0;
+    }
+
+    public int getCategory(int position) {
+        final int index = getItemIndex(position);
+        return index >= 0 ? mCategories[index] : AppItem.CATEGORY_APP_TITLE;
+    }
+
+    /**
+     * Returns the item at the given position, creating it on first use.
+     */
+    public AppItem getItem(int position) {
+        final int index = getItemIndex(position);
+        if (index < 0) {
+            if (mTitle == null) {
+                mTitle = new AppItem();
+                mTitle.category = AppItem.CATEGORY_APP_TITLE;
+            }
+            return mTitle;
+        }
+        AppItem item = mAppItems[index];
+        if (item == null) {
+            item = new AppItem(mKeys[index]);
+            item.category = mCategories[index];
+            item.total = mTotals[index];
+            item.restricted = mRestricted[index];
+            for (int node = mFirstNodes[index]; node != NO_NODE; node = mNodeNexts[node]) {
+                item.addUid(mNodeUids[node]);
+            }
+            mAppItems[index] = item;
+        }
+        return item;
+    }
+
+    /**
+     * Returns the index of the item at the given position, or -1 for the title.
+     */
+    private int getItemIndex(int position) {
+        if (!mHasTitle || position < mTitlePosition) {
+            return mOrder[position];
+        }
+        return position == mTitlePosition ? -1 : mOrder[position - 1];
+    }
+
+    private int getUserState(int userId) {
+        int state = mUserStates.get(userId);
+        if (state == 0) {
+            if (mProfiles.contains(new UserHandle(userId))) {
+                state = (userId == mCurrentUserId) ? USER_CURRENT : USER_PROFILE;
+            } else if (mUm.getUserInfo(userId) == null) {
+                state = USER_REMOVED;
+            } else {
+                state = USER_OTHER;
+            }
+            mUserStates.put(userId, state);
+        }
+        return state;
+    }
+
+    /**
+     * Accumulates the usage of an entry in the item mapped by the collapse key, creating the
+     * item if needed.
+     */
+    private void accumulate(int collapseKey, int category, int uid, long bytes) {
+        int index = mItemIndexes.get(collapseKey, -1);
+        if (index < 0) {
+            index = addItem(collapseKey, category);
+        }
+        if (mLastUids[index] != uid) {
+            // Entries come grouped by uid, so this is enough to add each uid once or so
+            mLastUids[index] = uid;
+            addNode(index, uid);
+        }
+        final long total = mTotals[index] + bytes;
+        mTotals[index] = total;
+        if (mLargest < total) {
+            mLargest = total;
+        }
+    }
+
+    private int addItem(int key, int category) {
+        if (mItemCount == mKeys.length) {
+            final int capacity = mItemCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mCategories = Arrays.copyOf(mCategories, capacity);
+            mTotals = Arrays.copyOf(mTotals, capacity);
+            mRestricted = Arrays.copyOf(mRestricted, capacity);
+            mLastUids = Arrays.copyOf(mLastUids, capacity);
+            mFirstNodes = Arrays.copyOf(mFirstNodes, capacity);
+            mAppItems = Arrays.copyOf(mAppItems, capacity);
+            mOrder = Arrays.copyOf(mOrder, capacity);
+        }
+        final int index = mItemCount++;
+        mKeys[index] = key;
+        mCategories[index] = category;
+        mTotals[index] = 0;
+        mRestricted[index] = false;
+        mLastUids[index] = UID_ALL;
+        mFirstNodes[index] = NO_NODE;
+        mItemIndexes.put(key, index);
+        return index;
+    }
+
+    private void addNode(int index, int uid) {
+        if (mNodeCount == mNodeUids.length) {
+            final int capacity = mNodeCount * 2;
+            mNodeUids = Arrays.copyOf(mNodeUids, capacity);
+            mNodeNexts = Arrays.copyOf(mNodeNexts, capacity);
+        }
+        final int node = mNodeCount++;
+        mNodeUids[node] = uid;
+        mNodeNexts[node] = mFirstNodes[index];
+        mFirstNodes[index] = node;
+    }
+
+    /**
+     * Sorts the item indexes by category and then by decreasing usage. Ties keep the order in
+     * which the items were created, as the previous stable sort of the items did.
+     */
+    private void sortItems() {
+        final int count = mItemCount;
+        for (int i = 0; i < count; i++) {
+            mOrder[i] = i;
+        }
+        for (int g = 0; g < SORT_GAPS.length; g++) {
+            final int gap = SORT_GAPS[g];
+            for (int i = gap; i < count; i++) {
+                final int index = mOrder[i];
+                int j = i;
+                while (j >= gap && compareItems(mOrder[j - gap], index) > 0) {
+                    mOrder[j] = mOrder[j - gap];
+                    j -= gap;
+                }
+                mOrder[j] = index;
+            }
+        }
+
+        // The title goes after the user items, which are sorted first
+        mTitlePosition = 0;
+        while (mTitlePosition < count
+                && mCategories[mOrder[mTitlePosition]] < AppItem.CATEGORY_APP_TITLE) {
+            mTitlePosition++;
+        }
+    }
+
+    private int compareItems(int lhs, int rhs) {
+        int comparison = Integer.compare(mCategories[lhs], mCategories[rhs]);
+        if (comparison == 0) {
+            comparison = Long.compare(mTotals[rhs], mTotals[lhs]);
+        }
+        if (comparison == 0) {
+            comparison = Integer.compare(lhs, rhs);
+        }
+        return comparison;
+    }
+}
@@ -33,9 +33,7 @@ public class NotificationBackend {
             ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
     public AppRow loadAppRow(PackageManager pm, ApplicationInfo app) {
-        final AppRow row = new AppRow();
-        row.pkg = app.packageName;
-        row.uid = app.uid;
+        final AppRow row = loadAppRowPolicy(app);
         try {
             row.label = app.loadLabel(pm);
         } catch (Throwable t) {
@@ -43,6 +41,17 @@ public class NotificationBackend {
             row.label = row.pkg;
         }
         row.icon = app.loadIcon(pm);
+        return row;
+    }
+
+    /**
+     * Loads the notification policy of the app, without its label and icon, for lists that
+     * show the label and icon they already have.
+     */
+    public AppRow loadAppRowPolicy(ApplicationInfo app) {
+        final AppRow row = new AppRow();
+        row.pkg = app.packageName;
+        row.uid = app.uid;
         row.banned = getNotificationsBanned(row.pkg, row.uid);
         row.priority = getHighPriority(row.pkg, row.uid);
         row.peekable = getPeekable(row.pkg, row.uid);
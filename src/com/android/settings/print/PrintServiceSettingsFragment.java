@@ -43,6 +43,8 @@ import android.print.PrinterDiscoverySession.OnPrintersChangeListener;
 import android.print.PrinterId;
 import android.print.PrinterInfo;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -65,6 +67,8 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.SettingsPreferenceFragment;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -484,14 +488,70 @@ public class PrintServiceSettingsFragment extends SettingsPreferenceFragment
         public abstract void onChange(boolean selfChange, Uri uri);
     }
 
+    /**
+     * Printer of a {@link PrintersAdapter}, with its name in lower case for filtering.
+     */
+    private static final class PrinterEntry {
+        final PrinterInfo printer;
+        final String lowerCaseName;
+
+        PrinterEntry(PrinterInfo printer, String lowerCaseName) {
+            this.printer = printer;
+            this.lowerCaseName = lowerCaseName;
+        }
+    }
+
+    /**
+     * Adapter of the printers of the service. The printers are kept by id and updated in place
+     * from each discovery result. Filter results are cached by search string until the printers
+     * change, and a longer search string only scans the results of a shorter one it contains.
+     */
     private final class PrintersAdapter extends BaseAdapter
             implements LoaderManager.LoaderCallbacks<List<PrinterInfo>>, Filterable {
+        // Maximum number of search strings whose results are cached
+        private static final int MAX_CACHED_FILTERS = 16;
+
         private final Object mLock = new Object();
 
-        private final List<PrinterInfo> mPrinters = new ArrayList<PrinterInfo>();
+        // Printers of the service by id, in discovery order, guarded by mLock
+        private final LinkedHashMap<PrinterId, PrinterEntry> mPrinters =
+                new LinkedHashMap<PrinterId, PrinterEntry>();
 
         private final List<PrinterInfo> mFilteredPrinters = new ArrayList<PrinterInfo>();
 
+        // Filter results of the current printers by lower case search string, guarded by mLock
+        private final ArrayMap<String, List<PrinterEntry>> mFilterCache =
+                new ArrayMap<String, List<PrinterEntry>>();
+
+        private final Filter mFilter = new Filter() {
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                if (TextUtils.isEmpty(constraint)) {
+                    return null;
+                }
+                synchronized (mLock) {
+                    // Only fills the cache, the results are read from it when published
+                    List<PrinterEntry> filteredPrinters =
+                            filterLocked(constraint.toString().toLowerCase());
+                    FilterResults results = new FilterResults();
+                    results.values = filteredPrinters;
+                    results.count = filteredPrinters.size();
+                    return results;
+                }
+            }
+
+            @Override
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                synchronized (mLock) {
+                    mLastSearchString = constraint;
+                    // The printers may have changed since filtering, which reads the cache
+                    // again for the current ones
+                    updateFilteredPrintersLocked();
+                }
+                notifyDataSetChanged();
+            }
+        };
+
         private CharSequence mLastSearchString;
 
         public void enable() {
@@ -500,54 +560,109 @@ public class PrintServiceSettingsFragment extends SettingsPreferenceFragment
 
         public void disable() {
             getLoaderManager().destroyLoader(LOADER_ID_PRINTERS_LOADER);
-            mPrinters.clear();
+            synchronized (mLock) {
+                mPrinters.clear();
+                mFilterCache.clear();
+            }
         }
 
         public int getUnfilteredCount() {
-            return mPrinters.size();
+            synchronized (mLock) {
+                return mPrinters.size();
+            }
         }
 
         @Override
         public Filter getFilter() {
-            return new Filter() {
-                @Override
-                protected FilterResults performFiltering(CharSequence constraint) {
-                    synchronized (mLock) {
-                        if (TextUtils.isEmpty(constraint)) {
-                            return null;
-                        }
-                        FilterResults results = new FilterResults();
-                        List<PrinterInfo> filteredPrinters = new ArrayList<PrinterInfo>();
-                        String constraintLowerCase = constraint.toString().toLowerCase();
-                        final int printerCount = mPrinters.size();
-                        for (int i = 0; i < printerCount; i++) {
-                            PrinterInfo printer = mPrinters.get(i);
-                            if (printer.getName().toLowerCase().contains(constraintLowerCase)) {
-                                filteredPrinters.add(printer);
-                            }
-                        }
-                        results.values = filteredPrinters;
-                        results.count = filteredPrinters.size();
-                        return results;
-                    }
+            return mFilter;
+        }
+
+        /**
+         * Returns the printers whose name contains the lower case search string.
+         */
+        private List<PrinterEntry> filterLocked(String lowerCaseSearchString) {
+            List<PrinterEntry> filteredPrinters = mFilterCache.get(lowerCaseSearchString);
+            if (filteredPrinters != null) {
+                return filteredPrinters;
+            }
+
+            // A name containing the search string contains all its substrings, so only the
+            // results of the longest cached substring need to be scanned
+            Collection<PrinterEntry> candidates = mPrinters.values();
+            int candidatesLength = -1;
+            final int cachedCount = mFilterCache.size();
+            for (int i = 0; i < cachedCount; i++) {
+                String cachedSearchString = mFilterCache.keyAt(i);
+                if (cachedSearchString.length() > candidatesLength
+                        && lowerCaseSearchString.contains(cachedSearchString)) {
+                    candidates = mFilterCache.valueAt(i);
+                    candidatesLength = cachedSearchString.length();
                 }
+            }
 
-                @Override
-                @SuppressWarnings("unchecked")
-                protected void publishResults(CharSequence constraint, FilterResults results) {
-                    synchronized (mLock) {
-                        mLastSearchString = constraint;
-                        mFilteredPrinters.clear();
-                        if (results == null) {
-                            mFilteredPrinters.addAll(mPrinters);
-                        } else {
-                            List<PrinterInfo> printers = (List<PrinterInfo>) results.values;
-                            mFilteredPrinters.addAll(printers);
-                        }
-                    }
-                    notifyDataSetChanged();
+            filteredPrinters = new ArrayList<PrinterEntry>();
+            for (PrinterEntry entry : candidates) {
+                if (entry.lowerCaseName.contains(lowerCaseSearchString)) {
+                    filteredPrinters.add(entry);
                 }
-            };
+            }
+            if (mFilterCache.size() >= MAX_CACHED_FILTERS) {
+                mFilterCache.clear();
+            }
+            mFilterCache.put(lowerCaseSearchString, filteredPrinters);
+            return filteredPrinters;
+        }
+
+        private void updateFilteredPrintersLocked() {
+            mFilteredPrinters.clear();
+            if (TextUtils.isEmpty(mLastSearchString)) {
+                for (PrinterEntry entry : mPrinters.values()) {
+                    mFilteredPrinters.add(entry.printer);
+                }
+            } else {
+                List<PrinterEntry> filteredPrinters =
+                        filterLocked(mLastSearchString.toString().toLowerCase());
+                final int printerCount = filteredPrinters.size();
+                for (int i = 0; i < printerCount; i++) {
+                    mFilteredPrinters.add(filteredPrinters.get(i).printer);
+                }
+            }
+        }
+
+        /**
+         * Adds, updates and removes the printers of the service from a discovery result.
+         *
+         * @return whether the printers changed
+         */
+        private boolean updatePrintersLocked(List<PrinterInfo> printers) {
+            boolean changed = false;
+            ArraySet<PrinterId> printerIds = new ArraySet<PrinterId>();
+            final int printerCount = printers.size();
+            for (int i = 0; i < printerCount; i++) {
+                PrinterInfo printer = printers.get(i);
+                PrinterId printerId = printer.getId();
+                if (!printerId.getServiceName().equals(mComponentName)) {
+                    continue;
+                }
+                printerIds.add(printerId);
+                PrinterEntry entry = mPrinters.get(printerId);
+                if (entry == null || !entry.printer.equals(printer)) {
+                    String lowerCaseName = entry != null
+                            && entry.printer.getName().equals(printer.getName())
+                            ? entry.lowerCaseName : printer.getName().toLowerCase();
+                    // Updating an existing printer keeps its position
+                    mPrinters.put(printerId, new PrinterEntry(printer, lowerCaseName));
+                    changed = true;
+                }
+            }
+            Iterator<PrinterId> iterator = mPrinters.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (!printerIds.contains(iterator.next())) {
+                    iterator.remove();
+                    changed = true;
+                }
+            }
+            return changed;
         }
 
         @Override
@@ -629,19 +744,11 @@ public class PrintServiceSettingsFragment extends SettingsPreferenceFragment
         public void onLoadFinished(Loader<List<PrinterInfo>> loader,
                 List<PrinterInfo> printers) {
             synchronized (mLock) {
-                mPrinters.clear();
-                final int printerCount = printers.size();
-                for (int i = 0; i < printerCount; i++) {
-                    PrinterInfo printer = printers.get(i);
-                    if (printer.getId().getServiceName().equals(mComponentName)) {
-                        mPrinters.add(printer);
-                    }
-                }
-                mFilteredPrinters.clear();
-                mFilteredPrinters.addAll(mPrinters);
-                if (!TextUtils.isEmpty(mLastSearchString)) {
-                    getFilter().filter(mLastSearchString);
+                if (!updatePrintersLocked(printers)) {
+                    return;
                 }
+                mFilterCache.clear();
+                updateFilteredPrintersLocked();
             }
             notifyDataSetChanged();
         }
@@ -651,6 +758,7 @@ public class PrintServiceSettingsFragment extends SettingsPreferenceFragment
             synchronized (mLock) {
                 mPrinters.clear();
                 mFilteredPrinters.clear();
+                mFilterCache.clear();
                 mLastSearchString = null;
             }
             notifyDataSetInvalidated();
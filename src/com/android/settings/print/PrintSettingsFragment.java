@@ -47,7 +47,10 @@ import android.provider.SearchIndexableResource;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
@@ -70,7 +73,9 @@ import com.android.settings.search.SearchIndexableRaw;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Fragment with the top level print settings.
@@ -407,8 +412,17 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
         public abstract void onChange(boolean selfChange, Uri uri);
     }
 
+    /**
+     * Binds the loaded print jobs to the preferences of the print jobs category. Preferences
+     * are kept by print job id, so only the ones of the jobs that changed are updated.
+     */
     private final class PrintJobsController implements LoaderCallbacks<List<PrintJobInfo>> {
 
+        private final ArrayMap<PrintJobId, PreferenceScreen> mPreferences =
+                new ArrayMap<PrintJobId, PreferenceScreen>();
+        private final ArrayMap<PrintJobId, PrintJobInfo> mBoundPrintJobs =
+                new ArrayMap<PrintJobId, PrintJobInfo>();
+
         @Override
         public Loader<List<PrintJobInfo>> onCreateLoader(int id, Bundle args) {
             if (id == LOADER_ID_PRINT_JOBS_LOADER) {
@@ -422,78 +436,49 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
                 List<PrintJobInfo> printJobs) {
             if (printJobs == null || printJobs.isEmpty()) {
                 getPreferenceScreen().removePreference(mActivePrintJobsCategory);
+                mActivePrintJobsCategory.removeAll();
+                mPreferences.clear();
+                mBoundPrintJobs.clear();
             } else {
                 if (getPreferenceScreen().findPreference(PRINT_JOBS_CATEGORY) == null) {
                     getPreferenceScreen().addPreference(mActivePrintJobsCategory);
                 }
 
-                mActivePrintJobsCategory.removeAll();
-
+                final ArraySet<PrintJobId> printJobIds = new ArraySet<PrintJobId>();
                 final int printJobCount = printJobs.size();
                 for (int i = 0; i < printJobCount; i++) {
                     PrintJobInfo printJob = printJobs.get(i);
+                    PrintJobId printJobId = printJob.getId();
+                    printJobIds.add(printJobId);
 
-                    PreferenceScreen preference = getPreferenceManager()
-                            .createPreferenceScreen(getActivity());
-
-                    preference.setPersistent(false);
-                    preference.setFragment(PrintJobSettingsFragment.class.getName());
-                    preference.setKey(printJob.getId().flattenToString());
-
-                    switch (printJob.getState()) {
-                        case PrintJobInfo.STATE_QUEUED:
-                        case PrintJobInfo.STATE_STARTED: {
-                            if (!printJob.isCancelling()) {
-                                preference.setTitle(getString(
-                                        R.string.print_printing_state_title_template,
-                                        printJob.getLabel()));
-                            } else {
-                                preference.setTitle(getString(
-                                        R.string.print_cancelling_state_title_template,
-                                        printJob.getLabel()));
-                            }
-                        } break;
-
-                        case PrintJobInfo.STATE_FAILED: {
-                            preference.setTitle(getString(
-                                    R.string.print_failed_state_title_template,
-                                    printJob.getLabel()));
-                        } break;
-
-                        case PrintJobInfo.STATE_BLOCKED: {
-                            if (!printJob.isCancelling()) {
-                                preference.setTitle(getString(
-                                        R.string.print_blocked_state_title_template,
-                                        printJob.getLabel()));
-                            } else {
-                                preference.setTitle(getString(
-                                        R.string.print_cancelling_state_title_template,
-                                        printJob.getLabel()));
-                            }
-                        } break;
-                    }
+                    PreferenceScreen preference = mPreferences.get(printJobId);
+                    if (preference == null) {
+                        preference = getPreferenceManager().createPreferenceScreen(
+                                getActivity());
 
-                    preference.setSummary(getString(R.string.print_job_summary,
-                            printJob.getPrinterName(), DateUtils.formatSameDayTime(
-                                    printJob.getCreationTime(), printJob.getCreationTime(),
-                                    DateFormat.SHORT, DateFormat.SHORT)));
-
-                    switch (printJob.getState()) {
-                        case PrintJobInfo.STATE_QUEUED:
-                        case PrintJobInfo.STATE_STARTED: {
-                            preference.setIcon(R.drawable.ic_print);
-                        } break;
-
-                        case PrintJobInfo.STATE_FAILED:
-                        case PrintJobInfo.STATE_BLOCKED: {
-                            preference.setIcon(R.drawable.ic_print_error);
-                        } break;
-                    }
+                        preference.setPersistent(false);
+                        preference.setFragment(PrintJobSettingsFragment.class.getName());
+                        preference.setKey(printJobId.flattenToString());
 
-                    Bundle extras = preference.getExtras();
-                    extras.putString(EXTRA_PRINT_JOB_ID, printJob.getId().flattenToString());
+                        Bundle extras = preference.getExtras();
+                        extras.putString(EXTRA_PRINT_JOB_ID, printJobId.flattenToString());
 
-                    mActivePrintJobsCategory.addPreference(preference);
+                        mPreferences.put(printJobId, preference);
+                        mActivePrintJobsCategory.addPreference(preference);
+                    }
+                    preference.setOrder(i);
+                    if (!isSameForDisplay(mBoundPrintJobs.get(printJobId), printJob)) {
+                        bindPreference(preference, printJob);
+                        mBoundPrintJobs.put(printJobId, printJob);
+                    }
+                }
+
+                for (int i = mPreferences.size() - 1; i >= 0; i--) {
+                    if (!printJobIds.contains(mPreferences.keyAt(i))) {
+                        mActivePrintJobsCategory.removePreference(mPreferences.valueAt(i));
+                        mBoundPrintJobs.remove(mPreferences.keyAt(i));
+                        mPreferences.removeAt(i);
+                    }
                 }
             }
         }
@@ -501,21 +486,119 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
         @Override
         public void onLoaderReset(Loader<List<PrintJobInfo>> loader) {
             getPreferenceScreen().removePreference(mActivePrintJobsCategory);
+            mActivePrintJobsCategory.removeAll();
+            mPreferences.clear();
+            mBoundPrintJobs.clear();
+        }
+
+        private void bindPreference(PreferenceScreen preference, PrintJobInfo printJob) {
+            switch (printJob.getState()) {
+                case PrintJobInfo.STATE_QUEUED:
+                case PrintJobInfo.STATE_STARTED: {
+                    if (!printJob.isCancelling()) {
+                        preference.setTitle(getString(
+                                R.string.print_printing_state_title_template,
+                                printJob.getLabel()));
+                    } else {
+                        preference.setTitle(getString(
+                                R.string.print_cancelling_state_title_template,
+                                printJob.getLabel()));
+                    }
+                } break;
+
+                case PrintJobInfo.STATE_FAILED: {
+                    preference.setTitle(getString(
+                            R.string.print_failed_state_title_template,
+                            printJob.getLabel()));
+                } break;
+
+                case PrintJobInfo.STATE_BLOCKED: {
+                    if (!printJob.isCancelling()) {
+                        preference.setTitle(getString(
+                                R.string.print_blocked_state_title_template,
+                                printJob.getLabel()));
+                    } else {
+                        preference.setTitle(getString(
+                                R.string.print_cancelling_state_title_template,
+                                printJob.getLabel()));
+                    }
+                } break;
+            }
+
+            preference.setSummary(getString(R.string.print_job_summary,
+                    printJob.getPrinterName(), DateUtils.formatSameDayTime(
+                            printJob.getCreationTime(), printJob.getCreationTime(),
+                            DateFormat.SHORT, DateFormat.SHORT)));
+
+            switch (printJob.getState()) {
+                case PrintJobInfo.STATE_QUEUED:
+                case PrintJobInfo.STATE_STARTED: {
+                    preference.setIcon(R.drawable.ic_print);
+                } break;
+
+                case PrintJobInfo.STATE_FAILED:
+                case PrintJobInfo.STATE_BLOCKED: {
+                    preference.setIcon(R.drawable.ic_print_error);
+                } break;
+            }
+        }
+
+        /**
+         * Returns whether the preference bound to the old job would show the new one the same.
+         */
+        private boolean isSameForDisplay(PrintJobInfo oldPrintJob, PrintJobInfo newPrintJob) {
+            return oldPrintJob != null
+                    && oldPrintJob.getState() == newPrintJob.getState()
+                    && oldPrintJob.isCancelling() == newPrintJob.isCancelling()
+                    && oldPrintJob.getCreationTime() == newPrintJob.getCreationTime()
+                    && Objects.equals(oldPrintJob.getLabel(), newPrintJob.getLabel())
+                    && Objects.equals(oldPrintJob.getPrinterName(),
+                            newPrintJob.getPrinterName());
         }
     }
 
+    /**
+     * Loads the print jobs shown to the user. After the first load, which gets all the print
+     * jobs, only the jobs reported by state changes are loaded again, once per frame.
+     */
     private static final class PrintJobsLoader extends AsyncTaskLoader<List<PrintJobInfo>> {
 
         private static final String LOG_TAG = "PrintJobsLoader";
 
         private static final boolean DEBUG = false;
 
-        private List<PrintJobInfo> mPrintJobs = new ArrayList<PrintJobInfo>();
+        // Shown print jobs in the order of the first load, then of appearance. Only modified by
+        // the loads, which do not overlap, or when reset.
+        private final LinkedHashMap<PrintJobId, PrintJobInfo> mPrintJobs =
+                new LinkedHashMap<PrintJobId, PrintJobInfo>();
+
+        // Jobs whose state changed since the last load, guarded by this. Null if all the jobs
+        // must be loaded again.
+        private ArraySet<PrintJobId> mChangedPrintJobIds;
 
         private final PrintManager mPrintManager;
 
         private PrintJobStateChangeListener mPrintJobStateChangeListener;
 
+        private List<PrintJobInfo> mResult;
+
+        // Whether a load is running, and whether jobs changed meanwhile. Loads are not
+        // cancelled for new changes, so that a busy queue cannot starve the deliveries.
+        private boolean mLoading;
+        private boolean mReloadPending;
+
+        private final Choreographer.FrameCallback mLoadCallback =
+                new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (mLoading) {
+                    mReloadPending = true;
+                } else {
+                    startLoad();
+                }
+            }
+        };
+
         public PrintJobsLoader(Context context) {
             super(context);
             mPrintManager = ((PrintManager) context.getSystemService(
@@ -525,34 +608,53 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
 
         @Override
         public void deliverResult(List<PrintJobInfo> printJobs) {
+            mResult = printJobs;
+            mLoading = false;
             if (isStarted()) {
                 super.deliverResult(printJobs);
+                if (mReloadPending) {
+                    mReloadPending = false;
+                    startLoad();
+                }
             }
         }
 
+        private void startLoad() {
+            mLoading = true;
+            onForceLoad();
+        }
+
         @Override
         protected void onStartLoading() {
             if (DEBUG) {
                 Log.i(LOG_TAG, "onStartLoading()");
             }
             // If we already have a result, deliver it immediately.
-            if (!mPrintJobs.isEmpty()) {
-                deliverResult(new ArrayList<PrintJobInfo>(mPrintJobs));
+            if (mResult != null) {
+                deliverResult(mResult);
             }
             // Start watching for changes.
             if (mPrintJobStateChangeListener == null) {
                 mPrintJobStateChangeListener = new PrintJobStateChangeListener() {
                     @Override
                     public void onPrintJobStateChanged(PrintJobId printJobId) {
-                        onForceLoad();
+                        onPrintJobChanged(printJobId);
                     }
                 };
                 mPrintManager.addPrintJobStateChangeListener(
                         mPrintJobStateChangeListener);
-            }
-            // If the data changed or we have no data - load it now.
-            if (mPrintJobs.isEmpty()) {
-                onForceLoad();
+                // Changes may have been missed while not watching
+                synchronized (this) {
+                    mChangedPrintJobIds = null;
+                }
+                startLoad();
+            } else if (mResult == null || takeContentChanged() || mReloadPending) {
+                if (mLoading) {
+                    mReloadPending = true;
+                } else {
+                    mReloadPending = false;
+                    startLoad();
+                }
             }
         }
 
@@ -562,7 +664,12 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
                 Log.i(LOG_TAG, "onStopLoading()");
             }
             // Cancel the load in progress if possible.
-            onCancelLoad();
+            if (onCancelLoad() && mLoading) {
+                // Its changes are applied to the model anyway, deliver them once started
+                mReloadPending = true;
+            }
+            mLoading = false;
+            Choreographer.getInstance().removeFrameCallback(mLoadCallback);
         }
 
         @Override
@@ -573,7 +680,7 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
             // Stop loading.
             onStopLoading();
             // Clear the cached result.
-            mPrintJobs.clear();
+            mResult = null;
             // Stop watching for changes.
             if (mPrintJobStateChangeListener != null) {
                 mPrintManager.removePrintJobStateChangeListener(
@@ -582,21 +689,61 @@ public class PrintSettingsFragment extends SettingsPreferenceFragment
             }
         }
 
+        /**
+         * Marks the job as changed, and loads the changed jobs at the next frame, so that a burst
+         * of state changes only makes one load.
+         */
+        private void onPrintJobChanged(PrintJobId printJobId) {
+            synchronized (this) {
+                if (mChangedPrintJobIds != null) {
+                    mChangedPrintJobIds.add(printJobId);
+                }
+            }
+            if (!isStarted()) {
+                onContentChanged();
+                return;
+            }
+            final Choreographer choreographer = Choreographer.getInstance();
+            choreographer.removeFrameCallback(mLoadCallback);
+            choreographer.postFrameCallback(mLoadCallback);
+        }
+
         @Override
         public List<PrintJobInfo> loadInBackground() {
-            List<PrintJobInfo> printJobInfos = null;
-            List<PrintJob> printJobs = mPrintManager.getPrintJobs();
-            final int printJobCount = printJobs.size();
-            for (int i = 0; i < printJobCount; i++) {
-                PrintJobInfo printJob = printJobs.get(i).getInfo();
-                if (shouldShowToUser(printJob)) {
-                    if (printJobInfos == null) {
-                        printJobInfos = new ArrayList<PrintJobInfo>();
-                    }
-                    printJobInfos.add(printJob);
+            final ArraySet<PrintJobId> changedPrintJobIds;
+            synchronized (this) {
+                changedPrintJobIds = mChangedPrintJobIds;
+                mChangedPrintJobIds = new ArraySet<PrintJobId>();
+            }
+            if (changedPrintJobIds == null) {
+                mPrintJobs.clear();
+                List<PrintJob> printJobs = mPrintManager.getPrintJobs();
+                final int printJobCount = printJobs.size();
+                for (int i = 0; i < printJobCount; i++) {
+                    updatePrintJob(printJobs.get(i).getId(), printJobs.get(i).getInfo());
+                }
+            } else {
+                final int printJobCount = changedPrintJobIds.size();
+                for (int i = 0; i < printJobCount; i++) {
+                    PrintJobId printJobId = changedPrintJobIds.valueAt(i);
+                    updatePrintJob(printJobId, mPrintManager.getPrintJobInfo(printJobId));
                 }
+                if (DEBUG) {
+                    Log.i(LOG_TAG, "Loaded " + printJobCount + " changed print jobs");
+                }
+            }
+            if (mPrintJobs.isEmpty()) {
+                return null;
+            }
+            return new ArrayList<PrintJobInfo>(mPrintJobs.values());
+        }
+
+        private void updatePrintJob(PrintJobId printJobId, PrintJobInfo printJob) {
+            if (printJob != null && shouldShowToUser(printJob)) {
+                mPrintJobs.put(printJobId, printJob);
+            } else {
+                mPrintJobs.remove(printJobId);
             }
-            return printJobInfos;
         }
 
         private static boolean shouldShowToUser(PrintJobInfo printJob) {
@@ -27,36 +27,50 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.EventLog;
 import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
+import com.android.settings.EventLogTags;
 import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -85,6 +99,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.MetaSourcesColumns;
 
 public class Index {
 
@@ -106,11 +121,13 @@ public class Index {
     public static final int COLUMN_INDEX_ENABLED = 12;
     public static final int COLUMN_INDEX_KEY = 13;
     public static final int COLUMN_INDEX_USER_ID = 14;
+    // Appended to SELECT_COLUMNS by the search queries, see IndexSearcher
+    static final int COLUMN_INDEX_DOCID = 15;
 
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
+    static final String[] SELECT_COLUMNS = new String[] {
             IndexColumns.DATA_RANK,               // 0
             IndexColumns.DATA_TITLE,              // 1
             IndexColumns.DATA_SUMMARY_ON,         // 2
@@ -124,16 +141,17 @@ public class Index {
             IndexColumns.INTENT_TARGET_PACKAGE,   // 10
             IndexColumns.INTENT_TARGET_CLASS,     // 11
             IndexColumns.ENABLED,                 // 12
-            IndexColumns.DATA_KEY_REF             // 13
+            IndexColumns.DATA_KEY_REF,            // 13
+            IndexColumns.USER_ID                  // 14
     };
 
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
+    static final String[] MATCH_COLUMNS_PRIMARY = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
             IndexColumns.DATA_KEYWORDS
     };
 
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
+    static final String[] MATCH_COLUMNS_SECONDARY = {
             IndexColumns.DATA_SUMMARY_ON,
             IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
             IndexColumns.DATA_SUMMARY_OFF,
@@ -145,6 +163,16 @@ public class Index {
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
+    // Max number of indexed titles kept in memory for proposing suggestions
+    private static final int MAX_INDEXED_TITLES = 2048;
+
+    private static final String[] SUGGESTIONS_COLUMNS = new String[] {
+            IndexDatabaseHelper.SavedQueriesColums.QUERY
+    };
+
+    private static final String[] TITLES_COLUMNS = new String[] {
+            IndexColumns.DATA_TITLE
+    };
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
@@ -159,6 +187,27 @@ public class Index {
     private static final String NODE_NAME_CHECK_BOX_PREFERENCE = "CheckBoxPreference";
     private static final String NODE_NAME_LIST_PREFERENCE = "ListPreference";
 
+    private static final String[] SOURCE_STATE_COLUMNS = new String[] {
+            MetaSourcesColumns.SOURCE_KEY,
+            MetaSourcesColumns.PACKAGE,
+            MetaSourcesColumns.FINGERPRINT,
+            MetaSourcesColumns.ROW_COUNT
+    };
+
+    // Max number of XML parsing threads used by an Index update
+    private static final int MAX_PARSER_THREADS = 4;
+    // Max number of sources parsed ahead of the database writes
+    private static final int MAX_PENDING_SOURCES = 16;
+
+    private static final ThreadFactory PARSER_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "Index:Parser #" + mCount.getAndIncrement());
+        }
+    };
+
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
     private static Index sInstance;
@@ -201,8 +250,78 @@ public class Index {
         }
     }
 
+    /**
+     * A private class to describe what has been indexed for one source (a resource, a provider
+     * class or a raw data item) in one locale
+     */
+    private static class SourceState {
+        public final String packageName;
+        public final String fingerprint;
+        public final int rowCount;
+
+        public SourceState(String packageName, String fingerprint, int rowCount) {
+            this.packageName = packageName;
+            this.fingerprint = fingerprint;
+            this.rowCount = rowCount;
+        }
+    }
+
+    /**
+     * A private class to describe a source whose rows are being parsed
+     */
+    private static class ParsedSource {
+        public final SearchIndexableData data;
+        public final String sourceKey;
+        public final String packageName;
+        public final String fingerprint;
+        public final boolean firstForSource;
+        public final Future<List<IndexRow>> rows;
+
+        public ParsedSource(SearchIndexableData data, String sourceKey, String packageName,
+                String fingerprint, boolean firstForSource, Future<List<IndexRow>> rows) {
+            this.data = data;
+            this.sourceKey = sourceKey;
+            this.packageName = packageName;
+            this.fingerprint = fingerprint;
+            this.firstForSource = firstForSource;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * A private class for parsing a SearchIndexableData into Index rows
+     */
+    private class ParseSourceCallable implements Callable<List<IndexRow>> {
+        private final SearchIndexableData mData;
+        private final String mLocaleStr;
+        private final Map<String, List<String>> mNonIndexableKeys;
+        private final String mSourceKey;
+
+        public ParseSourceCallable(SearchIndexableData data, String localeStr,
+                Map<String, List<String>> nonIndexableKeys, String sourceKey) {
+            mData = data;
+            mLocaleStr = localeStr;
+            mNonIndexableKeys = nonIndexableKeys;
+            mSourceKey = sourceKey;
+        }
+
+        @Override
+        public List<IndexRow> call() {
+            final List<IndexRow> rows = new ArrayList<IndexRow>();
+            indexOneSearchIndexableData(rows, mLocaleStr, mData, mNonIndexableKeys, mSourceKey);
+            return rows;
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    private final IndexSearcher mSearcher = new IndexSearcher();
+
+    private final PrefixSuggestions mSavedQueries =
+            new PrefixSuggestions((int) MAX_SAVED_SEARCH_QUERY);
+    private boolean mSavedQueriesLoaded;
+    private final PrefixSuggestions mIndexedTitles = new PrefixSuggestions(MAX_INDEXED_TITLES);
+    private String mIndexedTitlesLocale;
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -232,63 +351,129 @@ public class Index {
     }
 
     public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
-
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
-
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
-
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        return search(query, null);
+    }
 
-        return new MergeCursor(cursors);
+    /**
+     * Runs a search that can be interrupted by cancelling the given signal, in which case an
+     * {@link android.os.OperationCanceledException} is thrown.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        return mSearcher.search(getReadableDatabase(), query, Locale.getDefault().toString(),
+                cancellationSignal);
     }
 
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
-    }
+        final List<String> suggestions = getSavedQueries().lookup(query,
+                MAX_PROPOSED_SUGGESTIONS);
+        // Indexed titles only complete what has been typed
+        if (!TextUtils.isEmpty(query) && suggestions.size() < MAX_PROPOSED_SUGGESTIONS) {
+            final List<String> titles = getIndexedTitles().lookup(query,
+                    MAX_PROPOSED_SUGGESTIONS);
+            final int count = titles.size();
+            for (int n = 0; n < count && suggestions.size() < MAX_PROPOSED_SUGGESTIONS; n++) {
+                final String title = titles.get(n);
+                if (!containsIgnoreCase(suggestions, title)) {
+                    suggestions.add(title);
+                }
+            }
+        }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTIONS_COLUMNS, suggestions.size());
+        for (String suggestion : suggestions) {
+            cursor.addRow(new Object[] { suggestion });
+        }
+        return cursor;
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private static boolean containsIgnoreCase(List<String> list, String value) {
+        final int count = list.size();
+        for (int n = 0; n < count; n++) {
+            if (list.get(n).equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+    /**
+     * Returns the saved queries, loading them from the database the first time.
+     */
+    private PrefixSuggestions getSavedQueries() {
+        synchronized (mSavedQueries) {
+            if (!mSavedQueriesLoaded) {
+                Cursor cursor = null;
+                try {
+                    cursor = getReadableDatabase().query(Tables.TABLE_SAVED_QUERIES,
+                            SUGGESTIONS_COLUMNS, null, null, null, null, "rowId");
+                    while (cursor.moveToNext()) {
+                        mSavedQueries.add(cursor.getString(0));
+                    }
+                    mSavedQueriesLoaded = true;
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Cannot load saved queries", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            return mSavedQueries;
         }
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    /**
+     * Returns the titles indexed for the current locale, loading them from the database when
+     * the Index or the locale has changed.
+     */
+    private PrefixSuggestions getIndexedTitles() {
+        final String localeStr = Locale.getDefault().toString();
+        synchronized (mIndexedTitles) {
+            if (!localeStr.equals(mIndexedTitlesLocale)) {
+                mIndexedTitles.clear();
+                Cursor cursor = null;
+                try {
+                    // Lowest ranks are added last so that they get the highest priority
+                    cursor = getReadableDatabase().query(Tables.TABLE_PREFS_INDEX,
+                            TITLES_COLUMNS,
+                            IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                            new String[] { localeStr }, null, null,
+                            IndexColumns.DATA_RANK + " DESC");
+                    while (cursor.moveToNext()) {
+                        mIndexedTitles.add(cursor.getString(0));
+                    }
+                    mIndexedTitlesLocale = localeStr;
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Cannot load indexed titles", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            return mIndexedTitles;
+        }
+    }
 
-        return sb.toString();
+    private void invalidateIndexedTitles() {
+        synchronized (mIndexedTitles) {
+            mIndexedTitlesLocale = null;
+        }
     }
 
     public long addSavedQuery(String query){
         final SaveSearchQueryTask task = new SaveSearchQueryTask();
         task.execute(query);
         try {
-            return task.get();
+            final long rowId = task.get();
+            if (rowId >= 0) {
+                synchronized (mSavedQueries) {
+                    if (mSavedQueriesLoaded) {
+                        mSavedQueries.add(query);
+                    }
+                }
+            }
+            return rowId;
         } catch (InterruptedException e) {
             Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
             return -1 ;
@@ -298,6 +483,11 @@ public class Index {
         }
     }
 
+    public void dump(PrintWriter pw) {
+        pw.println("Index available: " + mIsAvailable.get());
+        mSearcher.dump(pw);
+    }
+
     public void update() {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
@@ -656,80 +846,26 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
-        return sb.toString();
-    }
-
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ");
-        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
-            sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
-        }
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_PREFS_INDEX);
-        sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
-        sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
-        return sb.toString();
-    }
-
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
-        final String value = query + "*";
-        StringBuilder sb = new StringBuilder();
-        final int count = columnNames.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(columnNames[n]);
-            sb.append(":");
-            sb.append(value);
-            if (n < count - 1) {
-                sb.append(" OR ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private int indexOneSearchIndexableData(List<IndexRow> rows, String localeStr,
+            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys,
+            String sourceKey) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            return indexOneResource(rows, localeStr, (SearchIndexableResource) data,
+                    nonIndexableKeys, sourceKey);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            return indexOneRaw(rows, localeStr, (SearchIndexableRaw) data, sourceKey);
         }
+        return 0;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
-                             SearchIndexableRaw raw) {
+    private int indexOneRaw(List<IndexRow> rows, String localeStr,
+                            SearchIndexableRaw raw, String sourceKey) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
-            return;
+            return 0;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        final boolean inserted = updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -744,7 +880,9 @@ public class Index {
                 raw.intentTargetClass,
                 raw.enabled,
                 raw.key,
-                raw.userId);
+                raw.userId,
+                sourceKey);
+        return inserted ? 1 : 0;
     }
 
     private static boolean isIndexableClass(final Class<?> clazz) {
@@ -762,12 +900,13 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private int indexOneResource(List<IndexRow> rows, String localeStr,
+            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource,
+            String sourceKey) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
-            return;
+            return 0;
         }
 
         final List<String> nonIndexableKeys = new ArrayList<String>();
@@ -778,21 +917,21 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            return indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    nonIndexableKeys, sourceKey);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
-                return;
+                return 0;
             }
 
             final Class<?> clazz = getIndexableClass(sir.className);
             if (clazz == null) {
                 Log.d(LOG_TAG, "SearchIndexableResource '" + sir.className +
                         "' should implement the " + Indexable.class.getName() + " interface!");
-                return;
+                return 0;
             }
 
             // Will be non null only for a Local provider implementing a
@@ -804,10 +943,11 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                return indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys, sourceKey);
             }
         }
+        return 0;
     }
 
     private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
@@ -830,11 +970,12 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private int indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
-           List<String> nonIndexableKeys) {
+           List<String> nonIndexableKeys, String sourceKey) {
 
+        int rowCount = 0;
         XmlResourceParser parser = null;
         try {
             parser = context.getResources().getXml(xmlResId);
@@ -870,10 +1011,12 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                if (updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
-                        key, -1 /* default user id */);
+                        key, -1 /* default user id */, sourceKey)) {
+                    rowCount++;
+                }
             }
 
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -902,10 +1045,12 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
-                            fragmentName, screenTitle, iconResId, rank,
+                    if (updateOneRowWithFilteredData(rows, localeStr, title, summary, null,
+                            entries, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, sourceKey)) {
+                        rowCount++;
+                    }
                 } else {
                     String summaryOn = getDataSummaryOn(context, attrs);
                     String summaryOff = getDataSummaryOff(context, attrs);
@@ -914,10 +1059,12 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
-                            null, fragmentName, screenTitle, iconResId, rank,
+                    if (updateOneRowWithFilteredData(rows, localeStr, title, summaryOn,
+                            summaryOff, null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, sourceKey)) {
+                        rowCount++;
+                    }
                 }
             }
 
@@ -928,17 +1075,20 @@ public class Index {
         } finally {
             if (parser != null) parser.close();
         }
+        return rowCount;
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private int indexFromProvider(Context context, List<IndexRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, List<String> nonIndexableKeys, String sourceKey) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
-            return;
+            return 0;
         }
 
+        int rowCount = 0;
+
         final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(context, enabled);
 
         if (rawList != null) {
@@ -955,7 +1105,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                final boolean inserted = updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -970,7 +1120,11 @@ public class Index {
                         raw.intentTargetClass,
                         raw.enabled,
                         raw.key,
-                        raw.userId);
+                        raw.userId,
+                        sourceKey);
+                if (inserted) {
+                    rowCount++;
+                }
             }
         }
 
@@ -991,20 +1145,21 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                rowCount += indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass, nonIndexableKeys, sourceKey);
             }
         }
+        return rowCount;
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private boolean updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String sourceKey) {
 
         final String updatedTitle = normalizeHyphen(title);
         final String updatedSummaryOn = normalizeHyphen(summaryOn);
@@ -1014,12 +1169,12 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        return updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
                 rank, keywords, intentAction, intentTargetPackage, intentTargetClass, enabled,
-                key, userId);
+                key, userId, sourceKey);
     }
 
     private static String normalizeHyphen(String input) {
@@ -1033,16 +1188,16 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private boolean updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
             String className, String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String sourceKey) {
 
         if (TextUtils.isEmpty(updatedTitle)) {
-            return;
+            return false;
         }
 
         // The DocID should contains more than the title string itself (you may have two settings
@@ -1051,29 +1206,109 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(new IndexRow(docId, locale, rank,
+                updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
+                updatedSummaryOff, normalizedSummaryOff, entries,
+                className, screenTitle, iconResId, keywords,
+                intentAction, intentTargetPackage, intentTargetClass, enabled,
+                key, userId, sourceKey));
+        return true;
+    }
+
+    private static int getParserCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_PARSER_THREADS));
+    }
+
+    /**
+     * Only XML resources are parsed concurrently: parsing them does not touch any shared state.
+     */
+    private static boolean isParallelizable(SearchIndexableData data) {
+        return (data instanceof SearchIndexableResource) &&
+                ((SearchIndexableResource) data).xmlResId > SearchIndexableResources.NO_DATA_RES_ID;
+    }
+
+    /**
+     * Returns the key identifying the rows produced by a SearchIndexableData in the Index.
+     */
+    private static String getSourceKey(SearchIndexableData data) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(getSourcePackage(data));
+        sb.append('/');
+        sb.append(data.className);
+        if (data instanceof SearchIndexableResource) {
+            sb.append('#');
+            sb.append(((SearchIndexableResource) data).xmlResId);
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            sb.append('#');
+            sb.append(TextUtils.isEmpty(raw.key) ? raw.title : raw.key);
+        }
+        return sb.toString();
+    }
+
+    private static String getSourcePackage(SearchIndexableData data) {
+        if (data.packageName != null) {
+            return data.packageName;
+        }
+        return (data.context != null) ? data.context.getPackageName() : null;
+    }
+
+    /**
+     * Returns a fingerprint of everything a SearchIndexableData is indexed from: the version of
+     * its package, its resource id and the attributes that are copied into the Index rows.
+     */
+    private String getSourceFingerprint(SearchIndexableData data, String packageName,
+            Map<String, List<String>> nonIndexableKeys, Map<String, String> packageVersions) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(data.className);
+        sb.append(data.rank);
+        sb.append(data.iconResId);
+        sb.append(data.enabled);
+        sb.append(data.intentAction);
+        sb.append(data.intentTargetPackage);
+        sb.append(data.intentTargetClass);
+        if (data instanceof SearchIndexableResource) {
+            sb.append(((SearchIndexableResource) data).xmlResId);
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            sb.append(raw.title);
+            sb.append(raw.summaryOn);
+            sb.append(raw.summaryOff);
+            sb.append(raw.entries);
+            sb.append(raw.keywords);
+            sb.append(raw.screenTitle);
+            sb.append(raw.key);
+            sb.append(raw.userId);
+        }
+        final List<String> keys = (packageName != null) ? nonIndexableKeys.get(packageName) : null;
+        if (keys != null) {
+            sb.append(keys.hashCode());
+        }
+        return getPackageVersion(packageName, packageVersions) + ":" +
+                Integer.toHexString(sb.toString().hashCode());
+    }
+
+    /**
+     * Returns the version of a package, or null if the package is not installed. Results are
+     * cached into the given map for the duration of an update.
+     */
+    private String getPackageVersion(String packageName, Map<String, String> packageVersions) {
+        if (packageName == null) {
+            return null;
+        }
+        if (packageVersions.containsKey(packageName)) {
+            return packageVersions.get(packageName);
+        }
+        String version = null;
+        try {
+            final PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            version = info.versionCode + "." + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.d(LOG_TAG, "Cannot find package: " + packageName);
+        }
+        packageVersions.put(packageName, version);
+        return version;
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1169,6 +1404,10 @@ public class Index {
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
 
+        private int mRowsSkipped;
+        private int mRowsRewritten;
+        private int mRowsDeleted;
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -1178,6 +1417,7 @@ public class Index {
         @Override
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
+            invalidateIndexedTitles();
             mIsAvailable.set(true);
         }
 
@@ -1217,31 +1457,181 @@ public class Index {
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
                 boolean forceUpdate) {
 
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
-
             boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToUpdate.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+            final Map<String, SourceState> sourceStates = loadSourceStates(database, localeStr);
+            final Map<String, String> packageVersions = new HashMap<String, String>();
+            final Set<String> processedSources = new HashSet<String>();
+            final Set<String> failedSources = new HashSet<String>();
+            final Set<String> walkedPackages = new HashSet<String>();
+
+            // XML resources are parsed by a pool of workers while this thread stays the only one
+            // writing into the database. The insert statement is compiled once for the whole run.
+            final ExecutorService parsers = Executors.newFixedThreadPool(getParserCount(),
+                    PARSER_THREAD_FACTORY);
+            final LinkedList<ParsedSource> parsedSources = new LinkedList<ParsedSource>();
+            final IndexRowWriter writer = new IndexRowWriter(database);
+            try {
+                // Several data items may share a source: a source is skipped only when all of
+                // them are unchanged, so its fingerprint covers all of them
+                final int count = dataToUpdate.size();
+                final String[] sourceKeys = new String[count];
+                final Map<String, String> fingerprints = new HashMap<String, String>();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    final String sourceKey = getSourceKey(data);
+                    final String packageName = getSourcePackage(data);
+                    final String fingerprint = getSourceFingerprint(data, packageName,
+                            nonIndexableKeys, packageVersions);
+                    if (packageName != null) {
+                        walkedPackages.add(packageName);
+                    }
+                    final String previous = fingerprints.get(sourceKey);
+                    fingerprints.put(sourceKey,
+                            (previous == null) ? fingerprint : previous + "," + fingerprint);
+                    sourceKeys[n] = sourceKey;
+                }
+
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    final String sourceKey = sourceKeys[n];
+                    final String packageName = getSourcePackage(data);
+                    final String fingerprint = fingerprints.get(sourceKey);
+
+                    final SourceState state = sourceStates.get(sourceKey);
+                    final boolean firstForSource = processedSources.add(sourceKey);
+                    if (!forceUpdate && state != null && state.fingerprint.equals(fingerprint)) {
+                        if (firstForSource) {
+                            mRowsSkipped += state.rowCount;
+                        }
+                        continue;
+                    }
+
+                    final FutureTask<List<IndexRow>> rows = new FutureTask<List<IndexRow>>(
+                            new ParseSourceCallable(data, localeStr, nonIndexableKeys, sourceKey));
+                    if (isParallelizable(data)) {
+                        parsers.execute(rows);
+                    } else {
+                        // Search index providers are free to call into anything: keep them on
+                        // this thread as before
+                        rows.run();
+                    }
+                    parsedSources.add(new ParsedSource(data, sourceKey, packageName, fingerprint,
+                            firstForSource, rows));
+
+                    if (parsedSources.size() >= MAX_PENDING_SOURCES) {
+                        writeParsedSource(database, writer, localeStr, sourceStates,
+                                failedSources, parsedSources.removeFirst());
+                    }
+                }
+                while (!parsedSources.isEmpty()) {
+                    writeParsedSource(database, writer, localeStr, sourceStates,
+                            failedSources, parsedSources.removeFirst());
+                }
+            } finally {
+                parsers.shutdownNow();
+                writer.close();
+            }
+
+            // An update that is not forced walks all the sources of its providers, so this is
+            // the right time for dropping the sources that they no longer produce, and the ones
+            // of packages that have been removed since the last run
+            if (!forceUpdate) {
+                for (Map.Entry<String, SourceState> entry : sourceStates.entrySet()) {
+                    final String sourceKey = entry.getKey();
+                    final SourceState state = entry.getValue();
+                    if (processedSources.contains(sourceKey) || state.packageName == null) {
+                        continue;
+                    }
+                    if (walkedPackages.contains(state.packageName)
+                            || getPackageVersion(state.packageName, packageVersions) == null) {
+                        forgetSource(database, localeStr, sourceKey);
+                    }
                 }
             }
 
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+                    (now - current) + " millis (skipped: " + mRowsSkipped + ", rewritten: " +
+                    mRowsRewritten + ", deleted: " + mRowsDeleted + ")");
+            EventLog.writeEvent(EventLogTags.SETTINGS_SEARCH_INDEX_UPDATE, localeStr,
+                    mRowsSkipped, mRowsRewritten, mRowsDeleted, now - current);
             return result;
         }
 
+        /**
+         * Waits for the rows of a source to be parsed and writes them, replacing the rows
+         * previously indexed for that source.
+         */
+        private void writeParsedSource(SQLiteDatabase database, IndexRowWriter writer,
+                String localeStr, Map<String, SourceState> sourceStates,
+                Set<String> failedSources, ParsedSource source) {
+            if (failedSources.contains(source.sourceKey)) {
+                // Another data item of the source failed, the source is indexed again next run
+                return;
+            }
+            final List<IndexRow> rows;
+            try {
+                rows = source.rows.get();
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted while indexing: " + source.data.className, e);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot index: " + source.data.className + " for locale: " +
+                        localeStr, e.getCause());
+                failedSources.add(source.sourceKey);
+                forgetSource(database, localeStr, source.sourceKey);
+                sourceStates.remove(source.sourceKey);
+                return;
+            }
+
+            final SourceState state = sourceStates.get(source.sourceKey);
+            try {
+                // Rows of a changed source are dropped only once per run, as several data items
+                // may share the same source
+                if (source.firstForSource && state != null) {
+                    mRowsDeleted += deleteSourceRows(database, localeStr, source.sourceKey);
+                }
+
+                final int rowCount = rows.size();
+                for (int n = 0; n < rowCount; n++) {
+                    writer.write(rows.get(n));
+                }
+                // Flushed by source, so that a failing source does not take others down
+                writer.flush();
+                mRowsRewritten += rowCount;
+
+                final SourceState newState = new SourceState(source.packageName,
+                        source.fingerprint, (source.firstForSource || state == null) ? rowCount
+                                : state.rowCount + rowCount);
+                saveSourceState(database, localeStr, source.sourceKey, newState);
+                sourceStates.put(source.sourceKey, newState);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Cannot write: " + source.data.className + " for locale: " +
+                        localeStr, e);
+                writer.discard();
+                failedSources.add(source.sourceKey);
+                forgetSource(database, localeStr, source.sourceKey);
+                sourceStates.remove(source.sourceKey);
+            }
+        }
+
+        /**
+         * Deletes the rows and the state of a source, so that it is indexed again if it is
+         * still there next run. Errors are only logged.
+         */
+        private void forgetSource(SQLiteDatabase database, String localeStr, String sourceKey) {
+            try {
+                mRowsDeleted += deleteSourceRows(database, localeStr, sourceKey);
+                deleteSourceState(database, localeStr, sourceKey);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Cannot delete source: " + sourceKey + " for locale: " +
+                        localeStr, e);
+            }
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1254,6 +1644,8 @@ public class Index {
                 if (data == null) {
                     continue;
                 }
+                // Forget what was indexed for that source so that it is indexed again
+                deleteSourceStates(database, getSourceKey(data));
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
                 } else  {
@@ -1279,18 +1671,18 @@ public class Index {
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        private Map<String, SourceState> loadSourceStates(SQLiteDatabase database,
+                String locale) {
+            final Map<String, SourceState> result = new HashMap<String, SourceState>();
             Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(Tables.TABLE_META_SOURCES, SOURCE_STATE_COLUMNS,
+                        MetaSourcesColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), new SourceState(cursor.getString(1),
+                            cursor.getString(2), cursor.getInt(3)));
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1298,6 +1690,36 @@ public class Index {
             }
             return result;
         }
+
+        private void saveSourceState(SQLiteDatabase database, String locale, String sourceKey,
+                SourceState state) {
+            final ContentValues values = new ContentValues();
+            values.put(MetaSourcesColumns.LOCALE, locale);
+            values.put(MetaSourcesColumns.SOURCE_KEY, sourceKey);
+            values.put(MetaSourcesColumns.PACKAGE, state.packageName);
+            values.put(MetaSourcesColumns.FINGERPRINT, state.fingerprint);
+            values.put(MetaSourcesColumns.ROW_COUNT, state.rowCount);
+
+            database.replaceOrThrow(Tables.TABLE_META_SOURCES, null, values);
+        }
+
+        private int deleteSourceState(SQLiteDatabase database, String locale, String sourceKey) {
+            return database.delete(Tables.TABLE_META_SOURCES,
+                    MetaSourcesColumns.LOCALE + " = ? AND " +
+                            MetaSourcesColumns.SOURCE_KEY + " = ?",
+                    new String[] { locale, sourceKey });
+        }
+
+        private int deleteSourceStates(SQLiteDatabase database, String sourceKey) {
+            return database.delete(Tables.TABLE_META_SOURCES,
+                    MetaSourcesColumns.SOURCE_KEY + " = ?", new String[] { sourceKey });
+        }
+
+        private int deleteSourceRows(SQLiteDatabase database, String locale, String sourceKey) {
+            return database.delete(Tables.TABLE_PREFS_INDEX,
+                    IndexColumns.LOCALE + " = ? AND " + IndexColumns.SOURCE_KEY + " = ?",
+                    new String[] { locale, sourceKey });
+        }
     }
 
     /**
@@ -28,11 +28,12 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
+        public static final String TABLE_META_SOURCES = "meta_sources";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
     }
 
@@ -57,12 +58,21 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        public static final String SOURCE_KEY = "source_key";
     }
 
     public interface MetaColumns {
         public static final String BUILD = "build";
     }
 
+    public interface MetaSourcesColumns {
+        public static final String LOCALE = "locale";
+        public static final String SOURCE_KEY = "source_key";
+        public static final String PACKAGE = "package";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String ROW_COUNT = "row_count";
+    }
+
     public interface SavedQueriesColums  {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -108,6 +118,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.DATA_KEY_REF +
                     ", " +
                     IndexColumns.USER_ID +
+                    ", " +
+                    IndexColumns.SOURCE_KEY +
                     ");";
 
     private static final String CREATE_META_TABLE =
@@ -116,6 +128,23 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
                     ")";
 
+    private static final String CREATE_META_SOURCES_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_SOURCES +
+                    "(" +
+                    MetaSourcesColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    MetaSourcesColumns.SOURCE_KEY + " TEXT NOT NULL" +
+                    ", " +
+                    MetaSourcesColumns.PACKAGE + " TEXT" +
+                    ", " +
+                    MetaSourcesColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    MetaSourcesColumns.ROW_COUNT + " INTEGER" +
+                    ", " +
+                    "PRIMARY KEY (" + MetaSourcesColumns.LOCALE + ", " +
+                            MetaSourcesColumns.SOURCE_KEY + ")" +
+                    ")";
+
     private static final String CREATE_SAVED_QUERIES_TABLE =
             "CREATE TABLE " + Tables.TABLE_SAVED_QUERIES +
                     "(" +
@@ -152,6 +181,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void bootstrapDB(SQLiteDatabase db) {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
+        db.execSQL(CREATE_META_SOURCES_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
@@ -217,6 +247,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private void dropTables(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_SOURCES);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
     }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+/**
+ * An immutable, already normalized row of the Index table.
+ *
+ * Rows are produced by the parsing stage of an Index update and consumed by the single
+ * {@link IndexRowWriter}.
+ */
+final class IndexRow {
+    public final int docId;
+    public final String locale;
+    public final int rank;
+    public final String title;
+    public final String normalizedTitle;
+    public final String summaryOn;
+    public final String normalizedSummaryOn;
+    public final String summaryOff;
+    public final String normalizedSummaryOff;
+    public final String entries;
+    public final String keywords;
+    public final String className;
+    public final String screenTitle;
+    public final int iconResId;
+    public final String intentAction;
+    public final String intentTargetPackage;
+    public final String intentTargetClass;
+    public final boolean enabled;
+    public final String key;
+    public final int userId;
+    public final String sourceKey;
+
+    public IndexRow(int docId, String locale, int rank,
+            String title, String normalizedTitle,
+            String summaryOn, String normalizedSummaryOn,
+            String summaryOff, String normalizedSummaryOff, String entries,
+            String className, String screenTitle, int iconResId, String keywords,
+            String intentAction, String intentTargetPackage, String intentTargetClass,
+            boolean enabled, String key, int userId, String sourceKey) {
+        this.docId = docId;
+        this.locale = locale;
+        this.rank = rank;
+        this.title = title;
+        this.normalizedTitle = normalizedTitle;
+        this.summaryOn = summaryOn;
+        this.normalizedSummaryOn = normalizedSummaryOn;
+        this.summaryOff = summaryOff;
+        this.normalizedSummaryOff = normalizedSummaryOff;
+        this.entries = entries;
+        this.keywords = keywords;
+        this.className = className;
+        this.screenTitle = screenTitle;
+        this.iconResId = iconResId;
+        this.intentAction = intentAction;
+        this.intentTargetPackage = intentTargetPackage;
+        this.intentTargetClass = intentTargetClass;
+        this.enabled = enabled;
+        this.key = key;
+        this.userId = userId;
+        this.sourceKey = sourceKey;
+    }
+}
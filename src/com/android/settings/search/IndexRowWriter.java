@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * Writes rows into the Index table through a single compiled statement.
+ *
+ * Rows are queued and flushed by chunks: the caller is expected to own the surrounding
+ * transaction and to call {@link #flush()} before committing it.
+ */
+class IndexRowWriter {
+
+    private static final int CHUNK_SIZE = 64;
+
+    // If you change the order of columns here, you SHOULD change the binding order in bindRow()
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,                       // 1
+            IndexColumns.LOCALE,                      // 2
+            IndexColumns.DATA_RANK,                   // 3
+            IndexColumns.DATA_TITLE,                  // 4
+            IndexColumns.DATA_TITLE_NORMALIZED,       // 5
+            IndexColumns.DATA_SUMMARY_ON,             // 6
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,  // 7
+            IndexColumns.DATA_SUMMARY_OFF,            // 8
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, // 9
+            IndexColumns.DATA_ENTRIES,                // 10
+            IndexColumns.DATA_KEYWORDS,               // 11
+            IndexColumns.CLASS_NAME,                  // 12
+            IndexColumns.SCREEN_TITLE,                // 13
+            IndexColumns.ICON,                        // 14
+            IndexColumns.INTENT_ACTION,               // 15
+            IndexColumns.INTENT_TARGET_PACKAGE,       // 16
+            IndexColumns.INTENT_TARGET_CLASS,         // 17
+            IndexColumns.ENABLED,                     // 18
+            IndexColumns.DATA_KEY_REF,                // 19
+            IndexColumns.USER_ID,                     // 20
+            IndexColumns.SOURCE_KEY                   // 21
+    };
+
+    private static final String INSERT_SQL = buildInsertSQL();
+
+    private final SQLiteStatement mStatement;
+
+    private final IndexRow[] mPendingRows = new IndexRow[CHUNK_SIZE];
+    private int mPendingCount;
+
+    public IndexRowWriter(SQLiteDatabase database) {
+        mStatement = database.compileStatement(INSERT_SQL);
+    }
+
+    /**
+     * Queues one row. The row is written at the latest by the next call to {@link #flush()}.
+     */
+    public void write(IndexRow row) {
+        mPendingRows[mPendingCount++] = row;
+        if (mPendingCount == CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all the queued rows.
+     */
+    public void flush() {
+        for (int n = 0; n < mPendingCount; n++) {
+            bindRow(mPendingRows[n]);
+            mStatement.executeInsert();
+            mPendingRows[n] = null;
+        }
+        mPendingCount = 0;
+    }
+
+    /**
+     * Drops the queued rows without writing them, e.g. after a failed {@link #flush()}.
+     */
+    public void discard() {
+        for (int n = 0; n < mPendingCount; n++) {
+            mPendingRows[n] = null;
+        }
+        mPendingCount = 0;
+    }
+
+    /**
+     * Flushes the queued rows and releases the compiled statement.
+     */
+    public void close() {
+        try {
+            flush();
+        } finally {
+            mStatement.close();
+        }
+    }
+
+    private void bindRow(IndexRow row) {
+        mStatement.bindLong(1, row.docId);
+        bindString(2, row.locale);
+        mStatement.bindLong(3, row.rank);
+        bindString(4, row.title);
+        bindString(5, row.normalizedTitle);
+        bindString(6, row.summaryOn);
+        bindString(7, row.normalizedSummaryOn);
+        bindString(8, row.summaryOff);
+        bindString(9, row.normalizedSummaryOff);
+        bindString(10, row.entries);
+        bindString(11, row.keywords);
+        bindString(12, row.className);
+        bindString(13, row.screenTitle);
+        mStatement.bindLong(14, row.iconResId);
+        bindString(15, row.intentAction);
+        bindString(16, row.intentTargetPackage);
+        bindString(17, row.intentTargetClass);
+        mStatement.bindLong(18, row.enabled ? 1 : 0);
+        bindString(19, row.key);
+        mStatement.bindLong(20, row.userId);
+        bindString(21, row.sourceKey);
+    }
+
+    private void bindString(int index, String value) {
+        if (value != null) {
+            mStatement.bindString(index, value);
+        } else {
+            mStatement.bindNull(index);
+        }
+    }
+
+    private static String buildInsertSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append(INSERT_COLUMNS[n]);
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(") VALUES (");
+        final int count = INSERT_COLUMNS.length;
+        for (int n = 0; n < count; n++) {
+            sb.append('?');
+            if (n < count - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
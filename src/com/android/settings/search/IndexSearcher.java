@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * Runs the search queries against the Index table.
+ *
+ * The SQL of the primary (title and keywords) and secondary (summaries and entries) queries is
+ * built once: the query and the locale are bound as arguments, so the database connection can
+ * reuse its prepared statements from one keystroke to the other. Results are bounded to the
+ * top {@link #MAX_RESULTS} rows, ordered by {@link IndexColumns#DATA_RANK} and then by the
+ * number of matching terms, counted from the tuples returned by the FTS offsets() function.
+ */
+class IndexSearcher {
+
+    // Max number of rows returned by a search
+    static final int MAX_RESULTS = 64;
+
+    // Upper bounds (in millis) of the latency histogram buckets, the last bucket is unbounded
+    private static final long[] LATENCY_BUCKETS = new long[] {
+            1, 2, 4, 8, 16, 32, 64, 128, 256, 512
+    };
+
+    // Number of matching terms of a row: offsets() returns one tuple of 4 space separated
+    // integers per term occurrence matched, so the tuples are counted from the spaces
+    private static final String MATCH_COUNT_SQL = buildMatchCountSQL();
+
+    private static final String PRIMARY_SQL = buildPrimarySQL();
+    private static final String SECONDARY_SQL = buildSecondarySQL();
+
+    // The primary query results are excluded from the secondary ones by docid. Docids are hash
+    // codes, so they cannot go beyond the int range.
+    private static final long UNUSED_DOCID = Long.MAX_VALUE;
+
+    private final long[] mPrimaryLatencies = new long[LATENCY_BUCKETS.length + 1];
+    private final long[] mSecondaryLatencies = new long[LATENCY_BUCKETS.length + 1];
+    private long mSearchCount;
+    private long mSecondarySkippedCount;
+
+    public Cursor search(SQLiteDatabase database, String query, String locale,
+            CancellationSignal cancellationSignal) {
+        final Cursor[] cursors = new Cursor[2];
+
+        long start = SystemClock.elapsedRealtime();
+        cursors[0] = rawQuery(database, PRIMARY_SQL, new Object[] {
+                buildMatchString(query, Index.MATCH_COLUMNS_PRIMARY),
+                locale,
+                MAX_RESULTS
+        }, cancellationSignal);
+
+        // Reading the docids executes the query, so this also measures the primary latency
+        final int primaryCount;
+        try {
+            primaryCount = cursors[0].getCount();
+        } catch (OperationCanceledException e) {
+            cursors[0].close();
+            throw e;
+        }
+        final Object[] secondaryArgs = new Object[MAX_RESULTS + 3];
+        for (int n = 0; n < MAX_RESULTS; n++) {
+            // Unused slots get a docid that no row can have, so that the SQL stays the same
+            secondaryArgs[n + 2] = (n < primaryCount && cursors[0].moveToPosition(n))
+                    ? cursors[0].getLong(Index.COLUMN_INDEX_DOCID) : UNUSED_DOCID;
+        }
+        cursors[0].moveToPosition(-1);
+        recordLatency(mPrimaryLatencies, SystemClock.elapsedRealtime() - start);
+
+        if (primaryCount < MAX_RESULTS) {
+            start = SystemClock.elapsedRealtime();
+            secondaryArgs[0] = buildMatchString(query, Index.MATCH_COLUMNS_SECONDARY);
+            secondaryArgs[1] = locale;
+            secondaryArgs[MAX_RESULTS + 2] = MAX_RESULTS - primaryCount;
+            try {
+                cursors[1] = rawQuery(database, SECONDARY_SQL, secondaryArgs,
+                        cancellationSignal);
+                cursors[1].getCount();
+            } catch (OperationCanceledException e) {
+                cursors[0].close();
+                if (cursors[1] != null) {
+                    cursors[1].close();
+                }
+                throw e;
+            }
+            recordLatency(mSecondaryLatencies, SystemClock.elapsedRealtime() - start);
+        } else {
+            synchronized (this) {
+                mSecondarySkippedCount++;
+            }
+        }
+
+        synchronized (this) {
+            mSearchCount++;
+        }
+        return new MergeCursor(cursors);
+    }
+
+    /**
+     * Runs a query binding its arguments with their own types, so that the docids and limits
+     * are bound as integers rather than as strings.
+     */
+    private static Cursor rawQuery(SQLiteDatabase database, String sql, final Object[] args,
+            CancellationSignal cancellationSignal) {
+        return database.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                    String editTable, SQLiteQuery query) {
+                for (int n = 0; n < args.length; n++) {
+                    DatabaseUtils.bindObjectToProgram(query, n + 1, args[n]);
+                }
+                return new SQLiteCursor(masterQuery, editTable, query);
+            }
+        }, sql, null, null, cancellationSignal);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Search queries: " + mSearchCount +
+                " (secondary query skipped: " + mSecondarySkippedCount + ")");
+        dumpLatencies(pw, "Primary query latency", mPrimaryLatencies);
+        dumpLatencies(pw, "Secondary query latency", mSecondaryLatencies);
+    }
+
+    private synchronized void recordLatency(long[] histogram, long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && millis >= LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+    }
+
+    private static void dumpLatencies(PrintWriter pw, String label, long[] histogram) {
+        pw.println(label + ":");
+        for (int n = 0; n < histogram.length; n++) {
+            pw.print("  ");
+            if (n < LATENCY_BUCKETS.length) {
+                pw.print("< " + LATENCY_BUCKETS[n] + " ms: ");
+            } else {
+                pw.print(">= " + LATENCY_BUCKETS[n - 1] + " ms: ");
+            }
+            pw.println(histogram[n]);
+        }
+    }
+
+    private static String buildMatchString(String query, String[] columnNames) {
+        final String value = query + "*";
+        StringBuilder sb = new StringBuilder();
+        final int count = columnNames.length;
+        for (int n = 0; n < count; n++) {
+            sb.append(columnNames[n]);
+            sb.append(":");
+            sb.append(value);
+            if (n < count - 1) {
+                sb.append(" OR ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String buildMatchCountSQL() {
+        final String offsets = "offsets(" + Tables.TABLE_PREFS_INDEX + ")";
+        return "((length(" + offsets + ") - length(replace(" + offsets + ", ' ', '')) + 1) / 4)";
+    }
+
+    private static String buildPrimarySQL() {
+        StringBuilder sb = buildSelectSQL();
+        sb.append(" ORDER BY ");
+        sb.append(IndexColumns.DATA_RANK);
+        sb.append(", ");
+        sb.append(MATCH_COUNT_SQL);
+        sb.append(" DESC LIMIT ?");
+        return sb.toString();
+    }
+
+    private static String buildSecondarySQL() {
+        // We need to exclude the primary results by docid as negate MATCH queries do not work.
+        StringBuilder sb = buildSelectSQL();
+        sb.append(" AND ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" NOT IN (");
+        for (int n = 0; n < MAX_RESULTS; n++) {
+            sb.append('?');
+            if (n < MAX_RESULTS - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(") ORDER BY ");
+        sb.append(IndexColumns.DATA_RANK);
+        sb.append(", ");
+        sb.append(MATCH_COUNT_SQL);
+        sb.append(" DESC LIMIT ?");
+        return sb.toString();
+    }
+
+    private static StringBuilder buildSelectSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        for (int n = 0; n < Index.SELECT_COLUMNS.length; n++) {
+            sb.append(Index.SELECT_COLUMNS[n]);
+            sb.append(", ");
+        }
+        sb.append(IndexColumns.DOCID);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory set of strings that can be looked up by prefix.
+ *
+ * Entries are kept in an array sorted by their lower case form, so a prefix lookup is a binary
+ * search followed by a scan of the matching range. Each entry has a priority: the most recently
+ * added entry has the highest one, and lookups return the matching entries by decreasing
+ * priority. When the set is full, the entry with the lowest priority is evicted.
+ */
+class PrefixSuggestions {
+
+    private final int mMaxEntries;
+
+    // Sorted by mKeys
+    private String[] mKeys;
+    private String[] mValues;
+    private long[] mPriorities;
+    private int mSize;
+
+    private long mNextPriority;
+
+    public PrefixSuggestions(int maxEntries) {
+        mMaxEntries = maxEntries;
+        final int capacity = Math.min(maxEntries, 16);
+        mKeys = new String[capacity];
+        mValues = new String[capacity];
+        mPriorities = new long[capacity];
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        for (int n = 0; n < mSize; n++) {
+            mKeys[n] = null;
+            mValues[n] = null;
+        }
+        mSize = 0;
+        mNextPriority = 0;
+    }
+
+    /**
+     * Adds a value with a higher priority than all the current ones. Adding a value that is
+     * already present only raises its priority.
+     */
+    public synchronized void add(String value) {
+        final String key = toKey(value);
+        int index = indexOf(key);
+        if (index >= 0) {
+            mValues[index] = value;
+            mPriorities[index] = mNextPriority++;
+            return;
+        }
+        if (mSize == mMaxEntries) {
+            removeAt(indexOfLowestPriority());
+            index = indexOf(key);
+        }
+        ensureCapacity(mSize + 1);
+
+        final int insertAt = -index - 1;
+        final int moved = mSize - insertAt;
+        System.arraycopy(mKeys, insertAt, mKeys, insertAt + 1, moved);
+        System.arraycopy(mValues, insertAt, mValues, insertAt + 1, moved);
+        System.arraycopy(mPriorities, insertAt, mPriorities, insertAt + 1, moved);
+        mKeys[insertAt] = key;
+        mValues[insertAt] = value;
+        mPriorities[insertAt] = mNextPriority++;
+        mSize++;
+    }
+
+    /**
+     * Returns up to maxCount values starting with the given prefix (ignoring case), by
+     * decreasing priority. An empty prefix matches all the values.
+     */
+    public synchronized List<String> lookup(String prefix, int maxCount) {
+        final String key = toKey(prefix);
+
+        int start = indexOf(key);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int end = start;
+        while (end < mSize && mKeys[end].startsWith(key)) {
+            end++;
+        }
+
+        // Selection of the top maxCount priorities: maxCount is expected to be small
+        final int[] best = new int[Math.min(maxCount, end - start)];
+        int bestCount = 0;
+        for (int n = start; n < end; n++) {
+            final long priority = mPriorities[n];
+            int pos = bestCount;
+            while (pos > 0 && mPriorities[best[pos - 1]] < priority) {
+                pos--;
+            }
+            if (pos >= best.length) {
+                continue;
+            }
+            final int last = Math.min(bestCount, best.length - 1);
+            System.arraycopy(best, pos, best, pos + 1, last - pos);
+            best[pos] = n;
+            if (bestCount < best.length) {
+                bestCount++;
+            }
+        }
+
+        final List<String> result = new ArrayList<String>(bestCount);
+        for (int n = 0; n < bestCount; n++) {
+            result.add(mValues[best[n]]);
+        }
+        return result;
+    }
+
+    private static String toKey(String value) {
+        return (value != null) ? value.toLowerCase() : "";
+    }
+
+    private int indexOf(String key) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = mKeys[mid].compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int indexOfLowestPriority() {
+        int result = 0;
+        for (int n = 1; n < mSize; n++) {
+            if (mPriorities[n] < mPriorities[result]) {
+                result = n;
+            }
+        }
+        return result;
+    }
+
+    private void removeAt(int index) {
+        final int moved = mSize - index - 1;
+        System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+        System.arraycopy(mValues, index + 1, mValues, index, moved);
+        System.arraycopy(mPriorities, index + 1, mPriorities, index, moved);
+        mSize--;
+        mKeys[mSize] = null;
+        mValues[mSize] = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mKeys.length) {
+            return;
+        }
+        final int newCapacity = Math.min(mMaxEntries, Math.max(capacity, mKeys.length * 2));
+        final String[] keys = new String[newCapacity];
+        final String[] values = new String[newCapacity];
+        final long[] priorities = new long[newCapacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        System.arraycopy(mPriorities, 0, priorities, 0, mSize);
+        mKeys = keys;
+        mValues = values;
+        mPriorities = priorities;
+    }
+}
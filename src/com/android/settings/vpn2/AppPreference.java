@@ -78,8 +78,10 @@ public class AppPreference extends ManageablePreference {
     }
 
     public void setState(int state) {
-        mState = state;
-        update();
+        if (mState != state) {
+            mState = state;
+            update();
+        }
     }
 
     private void update() {
@@ -138,6 +138,9 @@ public class ConfigDialogFragment extends DialogFragment implements
                 }
             }
         }
+        if (getTargetFragment() instanceof VpnSettings) {
+            ((VpnSettings) getTargetFragment()).onProfilesChanged();
+        }
         dismiss();
     }
 
@@ -48,9 +48,15 @@ public class ConfigPreference extends ManageablePreference {
         update();
     }
 
+    public int getState() {
+        return mState;
+    }
+
     public void setState(int state) {
-        mState = state;
-        update();
+        if (mState != state) {
+            mState = state;
+            update();
+        }
     }
 
     private void update() {
@@ -17,8 +17,10 @@
 package com.android.settings.vpn2;
 
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
@@ -29,7 +31,9 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
@@ -40,6 +44,8 @@ import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.security.Credentials;
 import android.security.KeyStore;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -57,23 +63,39 @@ import com.android.settings.SettingsPreferenceFragment;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import static android.app.AppOpsManager.OP_ACTIVATE_VPN;
 
 /**
  * Settings screen listing VPNs. Configured VPNs and networks managed by apps
  * are shown in the same list.
+ *
+ * The list is loaded on a background thread when something it shows may have changed: VPN
+ * networks, VPN app ops, packages, or the profiles saved by {@link ConfigDialogFragment}. Only
+ * the connection state of a legacy VPN that is still connecting is polled. Each load is applied
+ * to the preferences that changed.
  */
 public class VpnSettings extends SettingsPreferenceFragment implements
         Handler.Callback, Preference.OnPreferenceClickListener {
     private static final String LOG_TAG = "VpnSettings";
 
+    // Messages of the background updater, which reloads the parts in mPendingReloads
     private static final int RESCAN_MESSAGE = 0;
+    // Messages of the main thread, with the loaded Snapshot
+    private static final int APPLY_MESSAGE = 1;
+
+    // Interval at which the state of a connecting legacy VPN is polled
     private static final int RESCAN_INTERVAL_MS = 1000;
 
+    private static final int RELOAD_PROFILES = 1 << 0;
+    private static final int RELOAD_APPS = 1 << 1;
+    private static final int RELOAD_STATES = 1 << 2;
+    private static final int RELOAD_ALL = RELOAD_PROFILES | RELOAD_APPS | RELOAD_STATES;
+
     private static final String EXTRA_PICK_LOCKDOWN = "android.net.vpn.PICK_LOCKDOWN";
     private static final NetworkRequest VPN_REQUEST = new NetworkRequest.Builder()
             .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
@@ -85,6 +107,7 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             .asInterface(ServiceManager.getService(Context.CONNECTIVITY_SERVICE));
     private ConnectivityManager mConnectivityManager;
     private UserManager mUserManager;
+    private AppOpsManager mAppOpsManager;
 
     private final KeyStore mKeyStore = KeyStore.getInstance();
 
@@ -92,8 +115,21 @@ public class VpnSettings extends SettingsPreferenceFragment implements
     private HashMap<String, AppPreference> mAppPreferences = new HashMap<>();
 
     private Handler mUpdater;
+    private HandlerThread mUpdaterThread;
+    private Handler mBackgroundUpdater;
     private LegacyVpnInfo mConnectedLegacyVpn;
 
+    // Parts waiting for a reload, guarded by this lock
+    private final Object mReloadLock = new Object();
+    private int mPendingReloads;
+
+    // State of the background updater, only used from its thread. Profiles are kept decoded
+    // by KeyStore alias, with the hash of the bytes they were decoded from.
+    private final ArrayMap<String, VpnProfile> mDecodedProfiles = new ArrayMap<>();
+    private final ArrayMap<String, Integer> mDecodedProfileHashes = new ArrayMap<>();
+    private List<VpnProfile> mLoadedProfiles = new ArrayList<>();
+    private List<AppOpsManager.PackageOps> mLoadedApps = new ArrayList<>();
+
     private boolean mUnavailable;
 
     @Override
@@ -114,9 +150,36 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         }
 
         mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        mAppOpsManager = (AppOpsManager) getSystemService(Context.APP_OPS_SERVICE);
 
         setHasOptionsMenu(true);
         addPreferencesFromResource(R.xml.vpn_settings2);
+
+        mUpdater = new Handler(this);
+        mUpdaterThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mUpdaterThread.start();
+        mBackgroundUpdater = new Handler(mUpdaterThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                final int reloads;
+                synchronized (mReloadLock) {
+                    reloads = mPendingReloads;
+                    mPendingReloads = 0;
+                }
+                if (reloads != 0) {
+                    mUpdater.obtainMessage(APPLY_MESSAGE, loadSnapshot(reloads)).sendToTarget();
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mUpdaterThread != null) {
+            mUpdaterThread.quit();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -178,12 +241,16 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
         // Start monitoring
         mConnectivityManager.registerNetworkCallback(VPN_REQUEST, mNetworkCallback);
-
-        // Trigger a refresh
-        if (mUpdater == null) {
-            mUpdater = new Handler(this);
-        }
-        mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
+        mAppOpsManager.startWatchingMode(OP_ACTIVATE_VPN, null, mOpChangedListener);
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        getActivity().registerReceiver(mPackageReceiver, packageFilter);
+
+        // Trigger a refresh, KeyStore may have been unlocked meanwhile
+        requestReload(RELOAD_ALL);
     }
 
     @Override
@@ -195,75 +262,200 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
         // Stop monitoring
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        mAppOpsManager.stopWatchingMode(mOpChangedListener);
+        getActivity().unregisterReceiver(mPackageReceiver);
 
-        if (mUpdater != null) {
-            mUpdater.removeCallbacksAndMessages(null);
+        synchronized (mReloadLock) {
+            mPendingReloads = 0;
         }
+        mBackgroundUpdater.removeCallbacksAndMessages(null);
+        mUpdater.removeCallbacksAndMessages(null);
 
         super.onPause();
     }
 
-    @Override
-    public boolean handleMessage(Message message) {
-        mUpdater.removeMessages(RESCAN_MESSAGE);
-
-        // Pref group within which to list VPNs
-        PreferenceGroup vpnGroup = getPreferenceScreen();
-        vpnGroup.removeAll();
-        mConfigPreferences.clear();
-        mAppPreferences.clear();
+    /**
+     * Reloads the profiles, after they were saved to or deleted from KeyStore.
+     */
+    void onProfilesChanged() {
+        requestReload(RELOAD_PROFILES | RELOAD_STATES);
+    }
 
-        // Fetch configured VPN profiles from KeyStore
-        for (VpnProfile profile : loadVpnProfiles(mKeyStore)) {
-            final ConfigPreference pref = new ConfigPreference(getActivity(), mManageListener,
-                    profile);
-            pref.setOnPreferenceClickListener(this);
-            mConfigPreferences.put(profile.key, pref);
-            vpnGroup.addPreference(pref);
+    private void requestReload(int reloads) {
+        synchronized (mReloadLock) {
+            mPendingReloads |= reloads;
         }
+        // A delayed poll may be pending, load now instead
+        mBackgroundUpdater.removeMessages(RESCAN_MESSAGE);
+        mBackgroundUpdater.sendEmptyMessage(RESCAN_MESSAGE);
+    }
 
-        // 3rd-party VPN apps can change elsewhere. Reload them every time.
-        for (AppOpsManager.PackageOps pkg : getVpnApps()) {
-            String key = getVpnIdentifier(UserHandle.getUserId(pkg.getUid()), pkg.getPackageName());
-            final AppPreference pref = new AppPreference(getActivity(), mManageListener,
-                    pkg.getPackageName(), pkg.getUid());
-            pref.setOnPreferenceClickListener(this);
-            mAppPreferences.put(key, pref);
-            vpnGroup.addPreference(pref);
+    /**
+     * Loads the given parts of the list, keeping the others as last loaded. Called on the
+     * background updater.
+     */
+    private Snapshot loadSnapshot(int reloads) {
+        if ((reloads & RELOAD_PROFILES) != 0) {
+            mLoadedProfiles = loadVpnProfilesCached();
+        }
+        if ((reloads & RELOAD_APPS) != 0) {
+            mLoadedApps = getVpnApps();
         }
 
-        // Mark out connections with a subtitle
+        final Snapshot snapshot = new Snapshot(mLoadedProfiles, mLoadedApps);
         try {
             // Legacy VPNs
-            mConnectedLegacyVpn = null;
-            LegacyVpnInfo info = mConnectivityService.getLegacyVpnInfo(UserHandle.myUserId());
-            if (info != null) {
-                ConfigPreference preference = mConfigPreferences.get(info.key);
-                if (preference != null) {
-                    preference.setState(info.state);
-                    mConnectedLegacyVpn = info;
-                }
-            }
+            snapshot.legacyVpnInfo = mConnectivityService.getLegacyVpnInfo(
+                    UserHandle.myUserId());
 
             // Third-party VPNs
             for (UserHandle profile : mUserManager.getUserProfiles()) {
                 VpnConfig cfg = mConnectivityService.getVpnConfig(profile.getIdentifier());
                 if (cfg != null) {
-                    final String key = getVpnIdentifier(profile.getIdentifier(), cfg.user);
-                    final AppPreference preference = mAppPreferences.get(key);
-                    if (preference != null) {
-                        preference.setState(AppPreference.STATE_CONNECTED);
-                    }
+                    snapshot.connectedAppKeys.add(
+                            getVpnIdentifier(profile.getIdentifier(), cfg.user));
                 }
             }
         } catch (RemoteException e) {
             // ignore
         }
+        return snapshot;
+    }
+
+    /**
+     * Same as {@link #loadVpnProfiles}, but only decodes the profiles whose bytes changed since
+     * the last load.
+     */
+    private List<VpnProfile> loadVpnProfilesCached() {
+        final ArrayList<VpnProfile> result = new ArrayList<>();
+        if (!mKeyStore.isUnlocked()) {
+            mDecodedProfiles.clear();
+            mDecodedProfileHashes.clear();
+            return result;
+        }
+
+        final ArraySet<String> staleKeys = new ArraySet<>();
+        staleKeys.addAll(mDecodedProfiles.keySet());
+        for (String key : mKeyStore.list(Credentials.VPN)) {
+            final byte[] bytes = mKeyStore.get(Credentials.VPN + key);
+            final int hash = Arrays.hashCode(bytes);
+            VpnProfile profile = mDecodedProfiles.get(key);
+            final Integer decodedHash = mDecodedProfileHashes.get(key);
+            if (profile == null || decodedHash == null || decodedHash != hash) {
+                profile = VpnProfile.decode(key, bytes);
+                if (profile == null) {
+                    continue;
+                }
+                mDecodedProfiles.put(key, profile);
+                mDecodedProfileHashes.put(key, hash);
+            }
+            staleKeys.remove(key);
+            result.add(profile);
+        }
+        for (int i = staleKeys.size() - 1; i >= 0; i--) {
+            mDecodedProfiles.remove(staleKeys.valueAt(i));
+            mDecodedProfileHashes.remove(staleKeys.valueAt(i));
+        }
+        return result;
+    }
 
-        mUpdater.sendEmptyMessageDelayed(RESCAN_MESSAGE, RESCAN_INTERVAL_MS);
+    @Override
+    public boolean handleMessage(Message message) {
+        if (message.what == APPLY_MESSAGE && isResumed()) {
+            applySnapshot((Snapshot) message.obj);
+        }
         return true;
     }
 
+    /**
+     * Updates the preferences from the given snapshot, only touching the ones that changed.
+     */
+    private void applySnapshot(Snapshot snapshot) {
+        // Pref group within which to list VPNs
+        PreferenceGroup vpnGroup = getPreferenceScreen();
+
+        // Configured VPN profiles, decoded from KeyStore
+        final ArrayMap<String, ConfigPreference> staleConfigs =
+                new ArrayMap<>(mConfigPreferences.size());
+        for (ConfigPreference pref : mConfigPreferences.values()) {
+            staleConfigs.put(pref.getProfile().key, pref);
+        }
+        for (VpnProfile profile : snapshot.profiles) {
+            ConfigPreference pref = staleConfigs.remove(profile.key);
+            if (pref == null) {
+                pref = new ConfigPreference(getActivity(), mManageListener, profile);
+                pref.setOnPreferenceClickListener(this);
+                mConfigPreferences.put(profile.key, pref);
+                vpnGroup.addPreference(pref);
+            } else if (pref.getProfile() != profile) {
+                // Decoded again, its content changed
+                pref.setProfile(profile);
+            }
+        }
+        for (int i = staleConfigs.size() - 1; i >= 0; i--) {
+            mConfigPreferences.remove(staleConfigs.keyAt(i));
+            vpnGroup.removePreference(staleConfigs.valueAt(i));
+        }
+
+        // 3rd-party VPN apps
+        final ArrayMap<String, AppPreference> staleApps = new ArrayMap<>(mAppPreferences.size());
+        staleApps.putAll(mAppPreferences);
+        for (AppOpsManager.PackageOps pkg : snapshot.apps) {
+            String key = getVpnIdentifier(UserHandle.getUserId(pkg.getUid()), pkg.getPackageName());
+            if (staleApps.remove(key) == null) {
+                final AppPreference pref = new AppPreference(getActivity(), mManageListener,
+                        pkg.getPackageName(), pkg.getUid());
+                pref.setOnPreferenceClickListener(this);
+                mAppPreferences.put(key, pref);
+                vpnGroup.addPreference(pref);
+            }
+        }
+        for (int i = staleApps.size() - 1; i >= 0; i--) {
+            mAppPreferences.remove(staleApps.keyAt(i));
+            vpnGroup.removePreference(staleApps.valueAt(i));
+        }
+
+        // Mark out connections with a subtitle. The preferences are sorted by state, but the
+        // group only sorts them when they are added, so the ones whose state changed are added
+        // again.
+        mConnectedLegacyVpn = null;
+        final LegacyVpnInfo info = snapshot.legacyVpnInfo;
+        for (ConfigPreference pref : mConfigPreferences.values()) {
+            final int state;
+            if (info != null && pref.getProfile().key.equals(info.key)) {
+                state = info.state;
+                mConnectedLegacyVpn = info;
+            } else {
+                state = -1;
+            }
+            if (pref.getState() != state) {
+                vpnGroup.removePreference(pref);
+                pref.setState(state);
+                vpnGroup.addPreference(pref);
+            }
+        }
+        for (Map.Entry<String, AppPreference> entry : mAppPreferences.entrySet()) {
+            final AppPreference pref = entry.getValue();
+            final int state = snapshot.connectedAppKeys.contains(entry.getKey())
+                    ? AppPreference.STATE_CONNECTED : AppPreference.STATE_DISCONNECTED;
+            if (pref.getState() != state) {
+                vpnGroup.removePreference(pref);
+                pref.setState(state);
+                vpnGroup.addPreference(pref);
+            }
+        }
+
+        // Connecting legacy VPNs do not report their progress, poll it until they are done
+        if (mConnectedLegacyVpn != null
+                && (mConnectedLegacyVpn.state == LegacyVpnInfo.STATE_INITIALIZING
+                || mConnectedLegacyVpn.state == LegacyVpnInfo.STATE_CONNECTING)) {
+            synchronized (mReloadLock) {
+                mPendingReloads |= RELOAD_STATES;
+            }
+            mBackgroundUpdater.sendEmptyMessageDelayed(RESCAN_MESSAGE, RESCAN_INTERVAL_MS);
+        }
+    }
+
     @Override
     public boolean onPreferenceClick(Preference preference) {
         if (preference instanceof ConfigPreference) {
@@ -332,19 +524,45 @@ public class VpnSettings extends SettingsPreferenceFragment implements
     private NetworkCallback mNetworkCallback = new NetworkCallback() {
         @Override
         public void onAvailable(Network network) {
-            if (mUpdater != null) {
-                mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
-            }
+            requestReload(RELOAD_STATES);
         }
 
         @Override
         public void onLost(Network network) {
-            if (mUpdater != null) {
-                mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
-            }
+            requestReload(RELOAD_STATES);
         }
     };
 
+    private final AppOpsManager.OnOpChangedListener mOpChangedListener =
+            new AppOpsManager.OnOpChangedListener() {
+        @Override
+        public void onOpChanged(String op, String packageName) {
+            requestReload(RELOAD_APPS | RELOAD_STATES);
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            requestReload(RELOAD_APPS | RELOAD_STATES);
+        }
+    };
+
+    /**
+     * What the list shows, as loaded by the background updater.
+     */
+    private static class Snapshot {
+        final List<VpnProfile> profiles;
+        final List<AppOpsManager.PackageOps> apps;
+        LegacyVpnInfo legacyVpnInfo;
+        final ArraySet<String> connectedAppKeys = new ArraySet<>();
+
+        Snapshot(List<VpnProfile> profiles, List<AppOpsManager.PackageOps> apps) {
+            this.profiles = profiles;
+            this.apps = apps;
+        }
+    }
+
     @Override
     protected int getHelpResource() {
         return R.string.help_url_vpn;
@@ -360,8 +578,8 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         }
 
         // Fetch VPN-enabled apps from AppOps.
-        AppOpsManager aom = (AppOpsManager) getSystemService(Context.APP_OPS_SERVICE);
-        List<AppOpsManager.PackageOps> apps = aom.getPackagesForOps(new int[] {OP_ACTIVATE_VPN});
+        List<AppOpsManager.PackageOps> apps = mAppOpsManager.getPackagesForOps(
+                new int[] {OP_ACTIVATE_VPN});
         if (apps != null) {
             for (AppOpsManager.PackageOps pkg : apps) {
                 int userId = UserHandle.getUserId(pkg.getUid());
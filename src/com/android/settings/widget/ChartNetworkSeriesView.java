@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -75,6 +77,17 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /**
+     * Series decimated to a few points per pixel column, kept while the
+     * bound stats, bounds and width stay the same. Only the vertical mapping
+     * is redone by {@link #generatePath()}.
+     */
+    private final Decimator mPoints = new Decimator();
+    private boolean mPointsValid = false;
+    private int mPointsWidth;
+    private long mPointsLastTime;
+    private long mPointsTotal;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -143,11 +156,15 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
+        if (mStart != start || mEnd != end) {
+            mPointsValid = false;
+        }
         mStart = start;
         mEnd = end;
     }
@@ -183,55 +200,25 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        if (!mPointsValid || mPointsWidth != width) {
+            decimate(width);
+        }
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        long lastTime = mPointsLastTime;
+        long totalData = mPointsTotal;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        final int count = mPoints.count;
+        for (int i = 0; i < count; i++) {
+            lastX = mPoints.x[i];
+            lastY = mVert.convertToPoint(mPoints.value[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
         }
 
         // when data falls short, extend to requested end time
@@ -261,6 +248,7 @@ public class ChartNetworkSeriesView extends View {
 
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
+            NetworkStatsHistory.Entry entry = null;
 
             // long window is average over two weeks
             entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
@@ -291,6 +279,61 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the buckets of the bound {@link NetworkStatsHistory} between the
+     * current bounds and reduce the cumulative series outline to at most four
+     * points per pixel column.
+     */
+    private void decimate(int width) {
+        mPoints.reset();
+        mPointsValid = true;
+        mPointsWidth = width;
+
+        long lastTime = mHoriz.convertToValue(0);
+        long lastData = 0;
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
+            if (lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                mPoints.add(startX, lastData);
+            }
+
+            // always draw to end of current bucket
+            mPoints.add(endX, totalData);
+
+            lastData = totalData;
+            lastTime = endTime;
+        }
+        mPoints.finish();
+
+        mPointsLastTime = lastTime;
+        mPointsTotal = totalData;
+        if (LOGD) Log.d(TAG, "decimate() kept " + mPoints.count + " points for width " + width);
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
@@ -337,4 +380,93 @@ public class ChartNetworkSeriesView extends View {
         canvas.drawPath(mPathFill, paintFill);
         canvas.restoreToCount(save);
     }
+
+    /**
+     * Reduces a series of points to the first, lowest, highest and last ones
+     * of each pixel column they fall in, which draws the same at screen
+     * resolution.
+     */
+    private static class Decimator {
+        float[] x = new float[64];
+        long[] value = new long[64];
+        int count;
+
+        private boolean mColumnEmpty = true;
+        private int mColumn;
+        private float mFirstX;
+        private float mLastX;
+        private long mFirst;
+        private long mLast;
+        private long mMin;
+        private long mMax;
+        private boolean mMinFirst;
+
+        void reset() {
+            count = 0;
+            mColumnEmpty = true;
+        }
+
+        void add(float pointX, long pointValue) {
+            final int column = (int) Math.floor(pointX);
+            if (!mColumnEmpty && column != mColumn) {
+                finish();
+            }
+            if (mColumnEmpty) {
+                mColumnEmpty = false;
+                mColumn = column;
+                mFirstX = pointX;
+                mFirst = pointValue;
+                mMin = pointValue;
+                mMax = pointValue;
+                mMinFirst = true;
+            } else if (pointValue < mMin) {
+                mMin = pointValue;
+                mMinFirst = false;
+            } else if (pointValue > mMax) {
+                mMax = pointValue;
+                mMinFirst = true;
+            }
+            mLastX = pointX;
+            mLast = pointValue;
+        }
+
+        /**
+         * Emit the points kept for the current column.
+         */
+        void finish() {
+            if (mColumnEmpty) return;
+            mColumnEmpty = true;
+
+            append(mFirstX, mFirst);
+            final float middleX = (mFirstX + mLastX) / 2;
+            if (mMinFirst) {
+                appendExtreme(middleX, mMin);
+                appendExtreme(middleX, mMax);
+            } else {
+                appendExtreme(middleX, mMax);
+                appendExtreme(middleX, mMin);
+            }
+            if (mLastX != mFirstX || mLast != mFirst) {
+                append(mLastX, mLast);
+            }
+        }
+
+        private void appendExtreme(float pointX, long pointValue) {
+            // extremes already drawn by the first or last point are skipped,
+            // which leaves two points per column on monotonic series
+            if (pointValue != mFirst && pointValue != mLast) {
+                append(pointX, pointValue);
+            }
+        }
+
+        private void append(float pointX, long pointValue) {
+            if (count == x.length) {
+                x = Arrays.copyOf(x, count * 2);
+                value = Arrays.copyOf(value, count * 2);
+            }
+            x[count] = pointX;
+            value[count] = pointValue;
+            count++;
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Measures the time taken by {@link UidUsageAggregator} to aggregate a summary of 50k entries.
+ */
+@LargeTest
+public class UidUsageAggregatorBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "UidUsageAggregatorBenchmark";
+
+    private static final int ENTRY_COUNT = 50000;
+    private static final int APP_COUNT = 1000;
+    private static final int ITERATIONS = 10;
+
+    private UserManager mUm;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUm = (UserManager) getContext().getSystemService(Context.USER_SERVICE);
+    }
+
+    public void testAggregateLatency() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), ENTRY_COUNT);
+        long expectedTotal = 0;
+        for (int n = 0; n < ENTRY_COUNT; n++) {
+            // Entries come grouped by uid, with several sets and tags each
+            final int uid = UserHandle.getUid(UserHandle.myUserId(),
+                    Process.FIRST_APPLICATION_UID + (n * APP_COUNT / ENTRY_COUNT));
+            stats.addValues(NetworkStats.IFACE_ALL, uid, n % 2, n % 25, n, 1, 2 * n, 1, 0);
+            expectedTotal += 3L * n;
+        }
+
+        final UidUsageAggregator aggregator = new UidUsageAggregator();
+        long elapsed = 0;
+        for (int n = 0; n < ITERATIONS; n++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            aggregator.aggregate(stats, new int[0], mUm, mUm.getUserProfiles(),
+                    UserHandle.myUserId());
+            elapsed += SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        // One item per app, plus the title
+        assertEquals(APP_COUNT + 1, aggregator.getCount());
+        long total = 0;
+        for (int n = 0; n < aggregator.getCount(); n++) {
+            final AppItem item = aggregator.getItem(n);
+            if (item.category == AppItem.CATEGORY_APP) {
+                total += item.total;
+            }
+        }
+        assertEquals(expectedTotal, total);
+
+        Log.i(TAG, "Average aggregation time of " + ENTRY_COUNT + " entries: " +
+                (elapsed / ITERATIONS / 1000) + " us");
+    }
+
+    public void testAggregateOrder() {
+        final int userId = UserHandle.myUserId();
+        final int app1 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID);
+        final int app2 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 1);
+        final int restricted = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 2);
+
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 4);
+        stats.addValues(NetworkStats.IFACE_ALL, app1, 0, 0, 10, 1, 10, 1, 0);
+        stats.addValues(NetworkStats.IFACE_ALL, app2, 0, 0, 100, 1, 100, 1, 0);
+        stats.addValues(NetworkStats.IFACE_ALL, app2, 1, 0, 50, 1, 50, 1, 0);
+        stats.addValues(NetworkStats.IFACE_ALL, Process.SYSTEM_UID, 0, 0, 5, 1, 5, 1, 0);
+
+        final UidUsageAggregator aggregator = new UidUsageAggregator();
+        aggregator.aggregate(stats, new int[] { restricted }, mUm, mUm.getUserProfiles(),
+                userId);
+
+        // The restricted app without usage comes first, then the title and the apps
+        assertEquals(5, aggregator.getCount());
+        assertEquals(restricted, aggregator.getKey(0));
+        assertTrue(aggregator.getItem(0).restricted);
+        assertEquals(AppItem.CATEGORY_APP_TITLE, aggregator.getCategory(1));
+        assertEquals(app2, aggregator.getKey(2));
+        assertEquals(300, aggregator.getItem(2).total);
+        assertEquals(app1, aggregator.getKey(3));
+        assertEquals(Process.SYSTEM_UID, aggregator.getKey(4));
+        assertEquals(300, aggregator.getLargest());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * Compares the Index insertion throughput of {@link IndexRowWriter} against one
+ * {@link SQLiteDatabase#replaceOrThrow} per row, on a synthetic corpus of preferences.
+ */
+@LargeTest
+public class IndexRowWriterBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "IndexRowWriterBenchmark";
+
+    private static final int ROW_COUNT = 5000;
+    private static final String LOCALE = "en_US";
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        new IndexDatabaseHelper(getContext()).onCreate(mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testInsertThroughput() {
+        final long replaceMillis = timeReplaceOrThrow();
+        assertEquals(ROW_COUNT, countRows());
+        clearRows();
+
+        final long writerMillis = timeRowWriter();
+        assertEquals(ROW_COUNT, countRows());
+
+        Log.i(TAG, "replaceOrThrow: " + rowsPerSecond(replaceMillis) + " rows/s, " +
+                "IndexRowWriter: " + rowsPerSecond(writerMillis) + " rows/s");
+    }
+
+    private long timeReplaceOrThrow() {
+        final long start = SystemClock.elapsedRealtime();
+        mDatabase.beginTransaction();
+        try {
+            for (int n = 0; n < ROW_COUNT; n++) {
+                final ContentValues values = new ContentValues();
+                values.put(IndexColumns.DOCID, n);
+                values.put(IndexColumns.LOCALE, LOCALE);
+                values.put(IndexColumns.DATA_RANK, n % 20);
+                values.put(IndexColumns.DATA_TITLE, title(n));
+                values.put(IndexColumns.DATA_TITLE_NORMALIZED, title(n).toLowerCase());
+                values.put(IndexColumns.DATA_SUMMARY_ON, summary(n));
+                values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, summary(n).toLowerCase());
+                values.put(IndexColumns.DATA_SUMMARY_OFF, "");
+                values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, "");
+                values.put(IndexColumns.DATA_ENTRIES, (String) null);
+                values.put(IndexColumns.DATA_KEYWORDS, "keyword" + n);
+                values.put(IndexColumns.CLASS_NAME, className(n));
+                values.put(IndexColumns.SCREEN_TITLE, screenTitle(n));
+                values.put(IndexColumns.INTENT_ACTION, (String) null);
+                values.put(IndexColumns.INTENT_TARGET_PACKAGE, (String) null);
+                values.put(IndexColumns.INTENT_TARGET_CLASS, (String) null);
+                values.put(IndexColumns.ICON, 0);
+                values.put(IndexColumns.ENABLED, true);
+                values.put(IndexColumns.DATA_KEY_REF, "key" + n);
+                values.put(IndexColumns.USER_ID, -1);
+                values.put(IndexColumns.SOURCE_KEY, className(n));
+                mDatabase.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long timeRowWriter() {
+        final long start = SystemClock.elapsedRealtime();
+        mDatabase.beginTransaction();
+        try {
+            final IndexRowWriter writer = new IndexRowWriter(mDatabase);
+            try {
+                for (int n = 0; n < ROW_COUNT; n++) {
+                    writer.write(new IndexRow(n, LOCALE, n % 20,
+                            title(n), title(n).toLowerCase(),
+                            summary(n), summary(n).toLowerCase(), "", "", null,
+                            className(n), screenTitle(n), 0, "keyword" + n,
+                            null, null, null, true, "key" + n, -1, className(n)));
+                }
+            } finally {
+                writer.close();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long countRows() {
+        return DatabaseUtils.queryNumEntries(mDatabase, Tables.TABLE_PREFS_INDEX);
+    }
+
+    private void clearRows() {
+        mDatabase.delete(Tables.TABLE_PREFS_INDEX, null, null);
+    }
+
+    private static long rowsPerSecond(long millis) {
+        return ROW_COUNT * 1000L / Math.max(1, millis);
+    }
+
+    private static String title(int n) {
+        return "Preference title " + n;
+    }
+
+    private static String summary(int n) {
+        return "Summary describing the preference number " + n;
+    }
+
+    private static String className(int n) {
+        return "com.android.settings.SyntheticSettings" + (n / 50);
+    }
+
+    private static String screenTitle(int n) {
+        return "Screen " + (n / 50);
+    }
+}
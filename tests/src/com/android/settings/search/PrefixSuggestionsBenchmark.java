@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the suggestion lookup latency of {@link PrefixSuggestions} with 10k saved queries.
+ */
+@LargeTest
+public class PrefixSuggestionsBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "PrefixSuggestionsBenchmark";
+
+    private static final int QUERY_COUNT = 10000;
+    private static final int LOOKUP_COUNT = 1000;
+    private static final int MAX_SUGGESTIONS = 5;
+
+    private static final String[] WORDS = new String[] {
+            "wifi", "bluetooth", "battery", "display", "sound", "storage", "apps", "location",
+            "security", "accounts", "language", "backup", "date", "accessibility", "printing"
+    };
+
+    public void testLookupLatency() {
+        final PrefixSuggestions suggestions = new PrefixSuggestions(QUERY_COUNT);
+        final Random random = new Random(0);
+        for (int n = 0; n < QUERY_COUNT; n++) {
+            suggestions.add(WORDS[random.nextInt(WORDS.length)] + " " + n);
+        }
+        assertEquals(QUERY_COUNT, suggestions.size());
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < LOOKUP_COUNT; n++) {
+            final String word = WORDS[n % WORDS.length];
+            // Simulate typing: from one character to the full word
+            final String prefix = word.substring(0, 1 + (n % word.length()));
+            final List<String> result = suggestions.lookup(prefix, MAX_SUGGESTIONS);
+            assertTrue(result.size() <= MAX_SUGGESTIONS);
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "Average lookup latency over " + QUERY_COUNT + " saved queries: " +
+                (elapsed / LOOKUP_COUNT / 1000) + " us");
+    }
+
+    public void testLookupOrder() {
+        final PrefixSuggestions suggestions = new PrefixSuggestions(3);
+        suggestions.add("wifi");
+        suggestions.add("Wallpaper");
+        suggestions.add("bluetooth");
+        suggestions.add("WiFi calling");
+
+        // "wifi" has been evicted as the least recent entry
+        final List<String> result = suggestions.lookup("w", MAX_SUGGESTIONS);
+        assertEquals(2, result.size());
+        assertEquals("WiFi calling", result.get(0));
+        assertEquals("Wallpaper", result.get(1));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View.MeasureSpec;
+
+import com.android.settings.widget.ChartDataUsageView.DataAxis;
+import com.android.settings.widget.ChartDataUsageView.TimeAxis;
+
+/**
+ * Measures the frame time of a {@link ChartNetworkSeriesView} bound to a year of hourly buckets
+ * while a sweep is dragged, which regenerates the series path on each frame.
+ */
+@LargeTest
+public class ChartNetworkSeriesViewBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "ChartNetworkSeriesViewBenchmark";
+
+    private static final int BUCKET_COUNT = 365 * 24;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 600;
+    private static final int FRAMES = 120;
+
+    public void testSweepDragFrameTime() {
+        final long start = System.currentTimeMillis() - BUCKET_COUNT * HOUR_IN_MILLIS;
+        final long end = start + BUCKET_COUNT * HOUR_IN_MILLIS;
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, BUCKET_COUNT);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        long totalBytes = 0;
+        for (int n = 0; n < BUCKET_COUNT; n++) {
+            final long bucketStart = start + n * HOUR_IN_MILLIS;
+            entry.rxBytes = (n % 24) * 1024;
+            entry.txBytes = (n % 7) * 512;
+            history.recordData(bucketStart, bucketStart + HOUR_IN_MILLIS, entry);
+            totalBytes += entry.rxBytes + entry.txBytes;
+        }
+
+        final TimeAxis horiz = new TimeAxis();
+        horiz.setBounds(start, end);
+        horiz.setSize(WIDTH);
+        final InvertedChartAxis vert = new InvertedChartAxis(new DataAxis());
+        vert.setSize(HEIGHT);
+
+        final ChartNetworkSeriesView view = new ChartNetworkSeriesView(getContext());
+        view.init(horiz, vert);
+        view.setBounds(start, end);
+        view.bindNetworkStats(history);
+        view.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+
+        long elapsed = 0;
+        long maxElapsed = 0;
+        for (int n = 0; n < FRAMES; n++) {
+            // Dragging a sweep rescales the vertical axis and invalidates the path
+            vert.setBounds(0, totalBytes + n * 1024L * 1024L);
+            final long frameStart = SystemClock.elapsedRealtimeNanos();
+            view.invalidatePath();
+            view.draw(canvas);
+            final long frameElapsed = SystemClock.elapsedRealtimeNanos() - frameStart;
+            elapsed += frameElapsed;
+            maxElapsed = Math.max(maxElapsed, frameElapsed);
+        }
+        bitmap.recycle();
+
+        assertEquals(totalBytes, view.getMaxVisible());
+
+        Log.i(TAG, "Frame time over " + BUCKET_COUNT + " buckets: average " +
+                (elapsed / FRAMES / 1000) + " us, max " + (maxElapsed / 1000) + " us");
+    }
+}